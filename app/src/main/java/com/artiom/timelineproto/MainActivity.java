@@ -4,11 +4,19 @@ import androidx.appcompat.app.AppCompatActivity;
 import androidx.core.content.ContextCompat;
 
 import android.os.Bundle;
+import android.util.Log;
+import android.widget.FrameLayout;
 import android.widget.LinearLayout;
 import android.widget.SeekBar;
 import android.widget.TextView;
 
-import java.util.Locale;
+import java.io.FileDescriptor;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class MainActivity extends AppCompatActivity {
 
@@ -16,37 +24,44 @@ public class MainActivity extends AppCompatActivity {
 
     public static final int TIME_SCALE_MIN = 5; // Minimum time scale in minutes
     public static final int TIME_SCALE_SB_MAX = 500; // Maximum value "progress" of sb can give.
-    // The factor we multiply the "progress" by to get the scale.
+
+    // The factor we multiply the "progress" by to get the scale, so that the widest scale the
+    // timeline allows is at max, see Timeline.getMaxTimeScale.
     // Derrived from:
-    // min_scale + (max_sb)*(max_sb*x)=24*60
-    public static final float TIME_SCALE_SB_FACTOR = (24.0f*60 - TIME_SCALE_MIN)/(TIME_SCALE_SB_MAX*TIME_SCALE_SB_MAX*TIME_SCALE_SB_MAX);
+    // min_scale + (max_sb)*(max_sb)*(max_sb*x)=max_scale
+    private static float timeScaleFactor(float maxScale) {
+        return (maxScale - TIME_SCALE_MIN)/((float) TIME_SCALE_SB_MAX*TIME_SCALE_SB_MAX*TIME_SCALE_SB_MAX);
+    }
 
-    // timeScale is in minutes, and represents how big the time section can be on the screen.
-    public static float timeScale = TIME_SCALE_MIN;
-    // timeStart is in minutes and represents where we begin to see the current section on the screen.
-    public static float timeStart = 0;
+    // What part of the day is on the screen, every timeline follows it.
+    SharedViewport viewport = new SharedViewport(new Viewport(0, TIME_SCALE_MIN));
 
-    // Outside because setupTimeStart and setupTimeScale use it both.
-    TextView timeStartTextView;
-    SeekBar timeStartSeekBar;
+    // Outside because setupTimeStart and setupTimeScale use it both, and gestures on the timeline move them.
+    TextView timeStartTextView, timeScaleTextView;
+    SeekBar timeStartSeekBar, timeScaleSeekBar;
 
     Timeline tl;
+    TimelineLanes lanes;
+    public static final int DEMO_LANES = 2000;
 
-    private void setTimeText(String prefix, TextView timeScaleTextView, float minutes) {
-        String text;
+    // The moments are saved in the app's files, the writing happens on its own thread.
+    // One for the whole process, so a recreated activity's writes queue up behind the old one's.
+    private static final ExecutorService io = Executors.newSingleThreadExecutor();
+    private MomentFile momentFile;
 
-        if (minutes <= 60)
-            text = String.format(Locale.ENGLISH, "%s: %.1f %s", prefix, minutes, "minutes");
-        else
-            text = String.format(Locale.ENGLISH, "%s: %.1f %s", prefix, minutes/60, "hours");
+    // One per TextView, setText(char[], ...) keeps the array and shows whatever is in it later.
+    private final TimeLabels timeStartLabel = new TimeLabels(), timeScaleLabel = new TimeLabels();
 
-        timeScaleTextView.setText(text);
+    // Called on every SeekBar progress change, so it doesn't allocate.
+    private void setTimeText(TimeLabels label, String prefix, TextView textView, float minutes) {
+        label.duration(prefix, minutes);
+        textView.setText(label.chars(), 0, label.length());
     }
 
     private void setupTimeStart() {
 
         timeStartTextView = findViewById(R.id.timeStartTextView);
-        setTimeText("Start",timeStartTextView,timeStart);
+        setTimeText(timeStartLabel, "Start", timeStartTextView, viewport.get().timeStart);
 
         // Seek bar
         timeStartSeekBar = findViewById(R.id.timeStartSeekBar);
@@ -65,22 +80,23 @@ public class MainActivity extends AppCompatActivity {
             @Override
             // Progress is 0 to 100
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                timeStart = ((24*60)-timeScale) * (progress*1.0f/TIME_START_SB_MAX);
-                setTimeText("Start",timeStartTextView,timeStart);
+                // Set by syncSeekBars, the viewport is there already.
+                if (!fromUser)
+                    return;
 
-                // Make tl redraw stuff, since we changed the start, moments need to move.
-                tl.invalidate();
+                float timeStart = (tl.getTimeSpan()-viewport.get().timeScale) * (progress*1.0f/TIME_START_SB_MAX);
+                setTimeText(timeStartLabel, "Start", timeStartTextView, timeStart);
+
+                // Applied on the next frame, the timelines listen to the viewport and move their moments.
+                tl.moveViewportTo(viewport.get().withTimeStart(timeStart));
             }
         });
     }
 
     private void setupTimeScale() {
-        TextView timeScaleTextView;
-        SeekBar timeScaleSeekBar;
-
         // Text stuff
         timeScaleTextView = findViewById(R.id.timeScaleTextView);
-        setTimeText("Scale", timeScaleTextView,timeScale);
+        setTimeText(timeScaleLabel, "Scale", timeScaleTextView, viewport.get().timeScale);
 
         // Seek bar
         timeScaleSeekBar = findViewById(R.id.timeScaleSeekBar);
@@ -92,20 +108,19 @@ public class MainActivity extends AppCompatActivity {
         timeScaleSeekBar.setOnSeekBarChangeListener(new SeekBar.OnSeekBarChangeListener() {
             @Override
             public void onStopTrackingTouch(SeekBar seekBar) {
-                // If timescale is changed it should also modify the current time start seekbar, as time start still assumes it is in the up to date scale.
-                // We modify it here so we use less CPU power.
-
-                timeStartSeekBar.setProgress((int) (TIME_START_SB_MAX * (timeStart / (24 * 60 - timeScale))), false);
+                // The time start SeekBar used to be fixed up here, syncSeekBars does it on every change now.
             }
 
             @Override
             // Progress is 0 to 100
             public void onProgressChanged(SeekBar seekBar, int progress, boolean fromUser) {
-                timeScale = TIME_SCALE_SB_FACTOR * progress * progress * progress + TIME_SCALE_MIN;
-                setTimeText("Scale", timeScaleTextView,timeScale);
+                if (!fromUser)
+                    return;
+
+                float timeScale = timeScaleFactor(tl.getMaxTimeScale()) * progress * progress * progress + TIME_SCALE_MIN;
+                setTimeText(timeScaleLabel, "Scale", timeScaleTextView, timeScale);
 
-                // Make tl redraw stuff, since we changed the scale, moments need to move.
-                tl.invalidate();
+                tl.moveViewportTo(viewport.get().withTimeScale(timeScale));
             }
 
             @Override
@@ -124,6 +139,7 @@ public class MainActivity extends AppCompatActivity {
 
         LinearLayout tlLayout = findViewById(R.id.timelineLayout);
         tl = new Timeline(this, tlLayout);
+        tl.setViewport(viewport);
         tlLayout.addView(
                 tl,
                 new LinearLayout.LayoutParams(
@@ -131,13 +147,116 @@ public class MainActivity extends AppCompatActivity {
                         LinearLayout.LayoutParams.WRAP_CONTENT
                 )
         );
-        tl.addMoment(3 * 60, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentCyan));
-        tl.addMoment(4 * 60 + 5, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentRed));
-        tl.addMoment(2 * 60 + 10, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentYellow));
-        tl.addMoment(15*60, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentPurple));
 
+        momentFile = new MomentFile(getFilesDir(), "timeline", io);
+        try {
+            tl.open(momentFile);
+        } catch (IOException e) {
+            // Edits won't be saved either, better than crashing or overwriting what's there.
+            Log.e("MainActivity", "Couldn't open the saved moments.", e);
+        }
+
+        // First start, give the user something to look at.
+        if (tl.isEmpty()) {
+            tl.addMoment(3 * 60, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentCyan));
+            tl.addMoment(4 * 60 + 5, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentRed));
+            tl.addMoment(2 * 60 + 10, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentYellow));
+            tl.addMoment(15*60, 1, ContextCompat.getColor(getApplicationContext(), R.color.momentPurple));
+        }
+
+        setupLanes();
         setupTimeScale();
         setupTimeStart();
+        viewport.addListener(v -> syncSeekBars());
+    }
+
+    // A lot of read only lanes over the timeline, made up the first time they scroll into view.
+    private void setupLanes() {
+        lanes = new TimelineLanes(this);
+        lanes.setViewport(viewport);
+        lanes.setTimeSpan(new TimelineLanes.TimeSpan() {
+            @Override
+            public int timeSpan() {
+                return tl.getTimeSpan();
+            }
+
+            @Override
+            public float maxTimeScale() {
+                return tl.getMaxTimeScale();
+            }
+        });
+
+        int[] colors = {
+                ContextCompat.getColor(getApplicationContext(), R.color.momentCyan),
+                ContextCompat.getColor(getApplicationContext(), R.color.momentRed),
+                ContextCompat.getColor(getApplicationContext(), R.color.momentYellow),
+                ContextCompat.getColor(getApplicationContext(), R.color.momentPurple),
+        };
+        MomentStore[] stores = new MomentStore[DEMO_LANES];
+        lanes.setAdapter(new TimelineLanes.Adapter() {
+            @Override
+            public int laneCount() {
+                return stores.length;
+            }
+
+            @Override
+            public MomentStore lane(int i) {
+                if (stores[i] == null) {
+                    // Seeded by the lane, so a lane looks the same every time.
+                    Random random = new Random(i);
+                    MomentBatch batch = new MomentBatch();
+                    int span = tl.getTimeSpan();
+                    for (int k = 0; k < 20 + random.nextInt(200); k++)
+                        batch.add(random.nextInt(span), colors[random.nextInt(colors.length)], MomentStore.withTag(0, 0, 0));
+                    stores[i] = new MomentStore();
+                    stores[i].addAll(batch);
+                }
+                return stores[i];
+            }
+        });
+
+        FrameLayout lanesLayout = findViewById(R.id.lanesLayout);
+        lanesLayout.addView(lanes, new FrameLayout.LayoutParams(
+                FrameLayout.LayoutParams.MATCH_PARENT,
+                FrameLayout.LayoutParams.MATCH_PARENT
+        ));
+    }
+
+    // Puts the SeekBars and their texts where the viewport is, after a gesture on the timeline moved it.
+    private void syncSeekBars() {
+        Viewport v = viewport.get();
+        float span = tl.getTimeSpan();
+        setTimeText(timeStartLabel, "Start", timeStartTextView, v.timeStart);
+        setTimeText(timeScaleLabel, "Scale", timeScaleTextView, v.timeScale);
+
+        // The inverse of what onProgressChanged does.
+        timeStartSeekBar.setProgress((int) (TIME_START_SB_MAX * (v.timeStart / Math.max(1, span - v.timeScale))), false);
+        timeScaleSeekBar.setProgress((int) Math.round(Math.cbrt((v.timeScale - TIME_SCALE_MIN) / timeScaleFactor(tl.getMaxTimeScale()))), false);
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        try {
+            momentFile.flush();
+        } catch (IOException e) {
+            Log.e("MainActivity", "Couldn't save the moments.", e);
+        }
+
+        if (tl.getMetrics().isEnabled())
+            tl.logMetrics();
+    }
+
+    // adb shell dumpsys activity com.artiom.timelineproto/.MainActivity [--reset]
+    @Override
+    public void dump(String prefix, FileDescriptor fd, PrintWriter writer, String[] args) {
+        super.dump(prefix, fd, writer, args);
+        if (tl == null)
+            return;
+
+        tl.dumpMetrics(writer, prefix);
+        if (args != null && Arrays.asList(args).contains("--reset"))
+            tl.getMetrics().reset();
     }
 
 }
\ No newline at end of file
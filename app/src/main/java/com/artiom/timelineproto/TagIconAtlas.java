@@ -0,0 +1,75 @@
+package com.artiom.timelineproto;
+
+import android.content.Context;
+import android.content.res.TypedArray;
+import android.graphics.Bitmap;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.Rect;
+import android.graphics.RectF;
+import android.graphics.drawable.Drawable;
+
+import java.util.HashMap;
+
+// Every tag icon, rasterized once per size into a single bitmap that the whole process shares.
+// The bitmap is ALPHA_8, so drawing an icon with drawBitmap takes the paint's color, which is a
+// tint per moment without a ColorFilter per color and without touching the vector drawables.
+// They used to be tinted in place, and since drawables from the same resource share their state
+// the tint leaked into every other use of the icon.
+// Only meant to be used from the UI thread.
+public class TagIconAtlas {
+    // By size in pixels, there's usually just the one.
+    private static final HashMap<Integer, TagIconAtlas> atlases = new HashMap<>();
+
+    private final Bitmap bitmap;
+    private final int size, columns, count;
+    private final Rect src = new Rect();
+    private final RectF dst = new RectF();
+
+    public static TagIconAtlas get(Context context, int size) {
+        TagIconAtlas atlas = atlases.get(size);
+        if (atlas == null) {
+            // Kept for the whole process, so it mustn't hold on to an activity.
+            atlas = new TagIconAtlas(context.getApplicationContext(), size);
+            atlases.put(size, atlas);
+        }
+        return atlas;
+    }
+
+    private TagIconAtlas(Context context, int size) {
+        this.size = size;
+
+        TypedArray icons = context.getResources().obtainTypedArray(R.array.tag_icons_array);
+        count = icons.length();
+        columns = Math.max(1, (int) Math.ceil(Math.sqrt(count)));
+        int rows = Math.max(1, (count + columns - 1) / columns);
+
+        bitmap = Bitmap.createBitmap(columns * size, rows * size, Bitmap.Config.ALPHA_8);
+        Canvas canvas = new Canvas(bitmap);
+        for (int i = 0; i < count; i++) {
+            // Our own copy, so setting its bounds doesn't move anyone else's.
+            Drawable icon = icons.getDrawable(i).mutate();
+            int x = (i % columns) * size, y = (i / columns) * size;
+            icon.setBounds(x, y, x + size, y + size);
+            icon.draw(canvas);
+        }
+        icons.recycle();
+    }
+
+    // How many tags there are icons for.
+    public int count() {
+        return count;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    // Draws the tag's icon with its top left corner at (x, y), in the paint's color.
+    public void draw(Canvas canvas, int tag, float x, float y, Paint paint) {
+        int col = (tag % columns) * size, row = (tag / columns) * size;
+        src.set(col, row, col + size, row + size);
+        dst.set(x, y, x + size, y + size);
+        canvas.drawBitmap(bitmap, src, dst, paint);
+    }
+}
@@ -2,98 +2,82 @@ package com.artiom.timelineproto;
 
 import android.annotation.SuppressLint;
 import android.content.Context;
-import android.content.res.TypedArray;
 import android.graphics.Canvas;
 import android.graphics.Paint;
-import android.graphics.drawable.Drawable;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.SystemClock;
+import android.os.Trace;
 import android.util.Log;
+import android.view.Choreographer;
+import android.view.GestureDetector;
 import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
 import android.view.View;
+import android.widget.OverScroller;
 import android.widget.Toast;
 
-import java.util.ArrayList;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
 import java.util.Locale;
 
 @SuppressLint({"ViewConstructor"})
-public class Timeline extends View {
-    // A moment literally represents a moment in time.
-    // Usually a more suitable name would be task.
-    public class Moment implements Comparable<Moment> {
-        public static final int MAX_TAGS = 4;
-        // In minutes
-        public int t;
-
-//        public String name;
-        public byte[] tags;
-//        public int iconIndex;
-        public int color;
-
-        public void setupTags(int numTags) {
-            // tags
-            if (numTags < 1) {
-                Toast.makeText(getContext(), "Tags are important, you need one tag at least.", Toast.LENGTH_LONG).show();
-                numTags = 1;
-            }
-            else if (numTags > MAX_TAGS) {
-
-                Toast.makeText(getContext(), String.format(Locale.ENGLISH, "Up to %d tags please.", MAX_TAGS), Toast.LENGTH_SHORT).show();
-                numTags = MAX_TAGS;
-            }
-
-            tags = new byte[numTags];
-        }
-
-        public void setupTime(int t) {
-            // tags
-            if (t < 0) {
-                t = 0;
-                Toast.makeText(getContext(), "I'm planning to make negative time a feature, but not now.", Toast.LENGTH_LONG).show();
-            }
-            else if (t > 24*60) {
-                Toast.makeText(getContext(), "I'm planning to make time overflow a feature, but not now.", Toast.LENGTH_LONG).show();
-                t = 24*60;
-            }
-
-            this.t = t;
-        }
-
-//        public Moment(int t, int numTags) {
-//            // Randomize color
-//            float r = ThreadLocalRandom.current().nextFloat();
-//            float g = ThreadLocalRandom.current().nextFloat();
-//            float b = ThreadLocalRandom.current().nextFloat();
-//            color = Color.valueOf(r, g, b).toArgb();
-//
-//            // numTags
-//            setupTags(numTags);
-//
-//            // t
-//            setupTime(t);
-//        }
-
-        public Moment(int t, int numTags, int color) {
-            // color
-            this.color = color;
-            // numTags
-            setupTags(numTags);
-            // t
-            setupTime(t);
-        }
-
-        @Override
-        public int compareTo(Moment o) {
-            return t - o.t;
-        }
-    }
-
+public class Timeline extends View implements Viewport.Listener {
     // In SP units initially here, but becomes
     public float timelineStroke = 2.5f, momentRadius = timelineStroke*2.5f, momentTouchRadius = 20;
 
 
-    private final ArrayList<Moment> moments;
-    private final Drawable[] tagDrawables; // TODO: Maybe make it static?
+    // A moment literally represents a moment in time, usually a more suitable name would be task.
+    // They live in the store as plain arrays, sorted by time, a moment is just its index in there.
+    private final MomentStore moments;
+    // Minutes per color and tag in any window, kept up to date as the moments change.
+    private final MomentTotals totals;
+    // Null until a file is opened, then only the days around the viewport are in moments.
+    private MomentFile file;
+    private MomentChunks chunks;
+    public static final int MAX_CHUNKS = 14; // Two weeks of days
+    // Shared by every timeline, icons are drawn from it in the moment's color.
+    private final TagIconAtlas tagIcons;
+    private final Paint tagPaint;
 
     private final Paint linePaint, momentPaint;
+    // Hour and minute gridlines below the line, spaced by TimeLabels.tickMinutes for the zoom.
+    private final Paint tickPaint, tickLabelPaint;
+    private final TimeLabels tickLabel = new TimeLabels();
+    private float[] tickLines = new float[64];
+    private final float tickLength, tickLabelMinPx;
+    private final TimeTransform transform = new TimeTransform();
+    private SharedViewport viewport;
+    private final MomentDrag drag;
+    // The user's own edits, for undo and redo. Changes from the feed or from loading days aren't in it.
+    private final EditJournal journal = new EditJournal();
+
+    // Touches that don't start on a moment pan, fling and pinch the viewport. They are gathered in
+    // motion and applied once a frame, see applyMotion.
+    private final GestureDetector gestures;
+    private final ScaleGestureDetector scaleGestures;
+    private final OverScroller scroller;
+    private final ViewportMotion motion = new ViewportMotion(MainActivity.TIME_SCALE_MIN);
+    private final Choreographer.FrameCallback applyMotion = this::applyMotion;
+    private boolean motionPosted;
+    private int flingLastX;
+    // Changes pushed in from other threads, applied at most once a frame by applyFeed, see feed().
+    private final Runnable applyFeed = this::applyFeed;
+    private final MomentFeed feed = new MomentFeed(() -> postOnAnimation(applyFeed));
+    // Off unless `adb shell setprop log.tag.Timeline DEBUG` was run before the view was created.
+    private final TimelineMetrics metrics = new TimelineMetrics();
+
+    // Lays out frames on its own thread while attached, onDraw replays the newest one it finished.
+    private TimelineLayout layout;
+    // What the last request was for, so asking again without a change is free.
+    private int requestedVersion = -1, requestedHeight, requestedColorBefore;
+    private float requestedTimeStart, requestedPxPerMinute, requestedRight;
+    // The frames last recorded into the nodes and last drawn, by serial.
+    // Lines are clipped to the padding when replayed, circles aren't.
+    private int recordedSerial, shownSerial;
+    private final RenderNode lineNode = new RenderNode("TimelineLines"), circleNode = new RenderNode("TimelineCircles");
 
     public static int inactiveTimelineColor = 0;
     public static int timelineBackgroundColor = 0;
@@ -107,95 +91,254 @@ public class Timeline extends View {
     public Timeline(Context context, View parentView) {
         super(context);
 
-        this.moments = new ArrayList<>();
+        this.moments = new MomentStore();
+        this.totals = new MomentTotals(moments);
+        this.drag = new MomentDrag(moments, transform);
+        this.scroller = new OverScroller(context);
+        this.gestures = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                // Catching a fling stops it.
+                scroller.forceFinished(true);
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                if (scaleGestures.isInProgress())
+                    return false;
+                motion.pan(-distanceX);
+                postMotion();
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+                // Flung in pixels from 0, applyMotion pans by however far it got since the last frame.
+                flingLastX = 0;
+                scroller.fling(0, 0, (int) velocityX, 0, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 0);
+                postMotion();
+                return true;
+            }
+        });
+        this.gestures.setIsLongpressEnabled(false);
+        this.scaleGestures = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                motion.zoom(detector.getScaleFactor(), detector.getFocusX());
+                postMotion();
+                return true;
+            }
+        });
+        metrics.setEnabled(Log.isLoggable("Timeline", Log.DEBUG));
 
         // Setup stuff that is in DP:
         timelineStroke *= displayDensity;
         momentRadius *= displayDensity;
+        // Overlapping as soon as the circles touch.
+        drag.setOverlapPx(momentRadius * 2);
         momentTouchRadius *= displayDensity;
         padding *= displayDensity;
 
-        // Load tag drawables
-        TypedArray tagIconsArray = getResources().obtainTypedArray(R.array.tag_icons_array);
-        tagDrawables = new Drawable[tagIconsArray.length()];
-        for (int i = 0; i < tagDrawables.length; i++)
-            tagDrawables[i] = tagIconsArray.getDrawable(i);
-        tagIconsArray.recycle();
+        // Tag icons, rasterized once for the whole process
+        tagIcons = TagIconAtlas.get(context, (int) (momentRadius*3));
+        tagPaint = new Paint();
+        tagPaint.setFilterBitmap(true);
 
         // linePaint
         linePaint = new Paint();
         linePaint.setStyle(Paint.Style.STROKE);
         linePaint.setStrokeWidth(timelineStroke);
-        // momentPaint
+        // momentPaint, moments are drawn as round points as wide as the circle so they can be batched
         momentPaint = new Paint();
-        momentPaint.setStyle(Paint.Style.FILL);
+        momentPaint.setStyle(Paint.Style.STROKE);
+        momentPaint.setStrokeCap(Paint.Cap.ROUND);
+        momentPaint.setStrokeWidth(momentRadius*2);
+
+        // tickPaint, the labels are centered under their tick
+        tickLength = momentRadius;
+        tickPaint = new Paint();
+        tickPaint.setStyle(Paint.Style.STROKE);
+        tickPaint.setStrokeWidth(timelineStroke / 2);
+        tickLabelPaint = new Paint(Paint.ANTI_ALIAS_FLAG);
+        tickLabelPaint.setTextSize(10 * displayDensity);
+        tickLabelPaint.setTextAlign(Paint.Align.CENTER);
+        // Wide enough for "Day 100" with some room on both sides.
+        tickLabelMinPx = tickLabelPaint.getTextSize() * 5;
 
         // Use hardware rendering
         setLayerType(View.LAYER_TYPE_HARDWARE, null);
 
         // Setup the colors...
         inactiveTimelineColor = Util.getColorAttr(getContext(), R.attr.inactiveTimelineColor);
+        tickPaint.setColor(inactiveTimelineColor);
+        tickLabelPaint.setColor(inactiveTimelineColor);
         timelineBackgroundColor = Util.getColorAttr(getContext(), R.attr.timelineBackgroundColor);
         parentView.setBackgroundColor(timelineBackgroundColor);
 
+        // Frames cover more than the view, so panning can show them before the next one is ready.
+        lineNode.setClipToBounds(false);
+        circleNode.setClipToBounds(false);
+
         Log.d("Timeline()", "Called.");
     }
 
-    void replaceMomentWithPrev(int i) {
-        Moment prev = moments.get(i-1);
-        Moment moment = moments.get(i);
-        moments.set(i-1, moment);
-        moments.set(i, prev);
+    // Tells the user what was wrong with the moment they gave us, see MomentStore.validateTime and friends.
+    void reportProblem(int problem) {
+        switch (problem) {
+            case MomentStore.TOO_FEW_TAGS:
+                Toast.makeText(getContext(), "Tags are important, you need one tag at least.", Toast.LENGTH_LONG).show();
+                break;
+            case MomentStore.TOO_MANY_TAGS:
+                Toast.makeText(getContext(), String.format(Locale.ENGLISH, "Up to %d tags please.", MomentStore.MAX_TAGS), Toast.LENGTH_SHORT).show();
+                break;
+            case MomentStore.NEGATIVE_TIME:
+                Toast.makeText(getContext(), "I'm planning to make negative time a feature, but not now.", Toast.LENGTH_LONG).show();
+                break;
+            case MomentStore.TIME_OVERFLOW:
+                Toast.makeText(getContext(), "That's over 30 years from now, let's not plan that far.", Toast.LENGTH_LONG).show();
+                break;
+        }
     }
 
-    // This is a sort function that should be avoided if possible.
-//    void sortMoments() {
-//        Collections.sort(moments);
-//    }
+    public void addMoment(int t, int numTags, int color) {
+        reportProblem(MomentStore.validateTagCount(numTags));
+        reportProblem(MomentStore.validateTime(t));
+        numTags = MomentStore.clampTagCount(numTags);
+        t = MomentStore.clampTime(t);
+
+        long tags = 0;
+        for (int i = 0; i < numTags; i++)
+            tags = MomentStore.withTag(tags, i, (int) (Math.random()*tagIcons.count()));
+
+        moments.insert(t, color, tags);
+        journal.added(t, color, tags);
+        // Saved already, but it may be in a day that isn't loaded.
+        if (chunks != null)
+            chunks.trim();
+        scheduleFrame();
+    }
 
-    void sortMomentToFirst(int i) {
-        for (; i > 0; i--) {
-            if (moments.get(i).t < moments.get(i-1).t)
-                replaceMomentWithPrev(i);
-            else
-                break;
-        }
+    // Keeps the moments in the file from now on, and only loads the days around the viewport from it.
+    public void open(MomentFile file) throws IOException {
+        file.open();
+        this.file = file;
+        this.chunks = new MomentChunks(moments, file, MAX_CHUNKS);
+
+        moments.setListener(null);
+        moments.clear();
+        moments.setListener(file);
+        // Zoomed out too far, showing it would load every day there is.
+        if (viewport != null && viewport.get().timeScale > getMaxTimeScale())
+            viewport.set(viewport.get().withTimeScale(getMaxTimeScale()));
+        showChunks();
+        scheduleFrame();
     }
 
-    void sortMomentToLast(int i) {
-        for (; i < moments.size()-1; i++) {
-            if (moments.get(i).t > moments.get(i+1).t)
-                replaceMomentWithPrev(i+1);
-            else
-                break;
-        }
+    public boolean isEmpty() {
+        if (file != null)
+            return file.firstTime() > file.lastTime();
+        return moments.size() == 0;
     }
 
-    // This version of sortMoments let's you sort if only a single moment was added.
-    // This should be the more common function that you use.
-    void sortMoments(int outlierIndex) {
-        Moment outlier = moments.get(outlierIndex);
-        if (outlierIndex == moments.size()-1)
-            sortMomentToFirst(outlierIndex);
-        else if (outlierIndex == 0)
-            sortMomentToLast(outlierIndex);
-        else if (outlier.t > moments.get(outlierIndex+1).t) {
-            replaceMomentWithPrev(outlierIndex+1);
-            sortMomentToLast(outlierIndex+1);
-        }
-        else if (outlier.t < moments.get(outlierIndex-1).t) {
-            replaceMomentWithPrev(outlierIndex);
-            sortMomentToFirst(outlierIndex-1);
+    // Minutes from 0 to the end of the day of the last moment, a day at least.
+    public int getTimeSpan() {
+        int last = file != null ? file.lastTime() : moments.size() > 0 ? moments.getTime(moments.size() - 1) : 0;
+        return (MomentChunks.chunkOf(Math.max(0, last)) + 1) * MomentChunks.CHUNK_MINUTES;
+    }
+
+    // How far out the viewport may zoom. With a file only the days that fit in the chunks, see
+    // MomentChunks.maxTimeScale, otherwise the whole span.
+    public float getMaxTimeScale() {
+        return chunks != null ? Math.min(getTimeSpan(), chunks.maxTimeScale()) : getTimeSpan();
+    }
+
+    // Adds a whole batch with a single sort and redraws once, use it instead of addMoment in a loop
+    // when loading a day's worth of moments. The batch is fixed in place like addMoment would fix a
+    // single moment, but only the first problem is reported, nobody wants a toast per moment.
+    public void addMoments(MomentBatch batch) {
+        int problem = MomentStore.VALID;
+        for (int i = 0; i < batch.size(); i++) {
+            int t = batch.getTime(i);
+            long tags = batch.getTags(i);
+            if (problem == MomentStore.VALID)
+                problem = MomentStore.validateTime(t);
+            if (problem == MomentStore.VALID)
+                problem = MomentStore.validateTagCount(MomentStore.tagCount(tags));
+
+            batch.setTime(i, MomentStore.clampTime(t));
+            batch.setTags(i, MomentStore.clampTags(tags));
         }
+        reportProblem(problem);
+
+        moments.addAll(batch);
+        if (chunks != null)
+            chunks.trim();
+        scheduleFrame();
+    }
+
+    public void addMoments(int[] times, int[] colors, long[] packedTags) {
+        addMoments(new MomentBatch(times, colors, packedTags));
+    }
+
+    // Undoes the last edit the user made, returns false if nothing changed. Not while dragging.
+    public boolean undo() {
+        if (drag.isDragging() || !journal.undo(moments, chunks))
+            return false;
+        editsChanged();
+        return true;
+    }
+
+    public boolean redo() {
+        if (drag.isDragging() || !journal.redo(moments, chunks))
+            return false;
+        editsChanged();
+        return true;
+    }
+
+    public boolean canUndo() {
+        return journal.canUndo();
+    }
+
+    public boolean canRedo() {
+        return journal.canRedo();
     }
 
-    public void addMoment(int t, int tags, int color) {
-        Moment m = new Moment(t, tags, color);
-        moments.add(m);
-        for (int i = 0; i < m.tags.length; i++) {
-            m.tags[i] = (byte) (Math.random()*tagDrawables.length);
+    private void editsChanged() {
+        if (chunks != null)
+            chunks.trim();
+        scheduleFrame();
+    }
+
+    // How the time in a window was spent, per color and tag. Cheap enough to ask on every scrub,
+    // but only the loaded days are in there.
+    public MomentTotals getTotals() {
+        return totals;
+    }
+
+    // For live updates, it can be pushed to from any thread as often as it likes. Whatever was
+    // pushed during a frame is applied once before the next one, with a single redraw.
+    public MomentFeed feed() {
+        return feed;
+    }
+
+    void applyFeed() {
+        // Indices shift under the moment being dragged, so the feed waits for the drag to end.
+        if (drag.isDragging()) {
+            postOnAnimation(applyFeed);
+            return;
+        }
+
+        Trace.beginSection("Timeline.applyFeed");
+        long events = feed.eventsDrained();
+        int changes = feed.drain(moments, chunks);
+        metrics.countFeed((int) (feed.eventsDrained() - events), changes);
+        if (changes > 0) {
+            if (chunks != null)
+                chunks.trim();
+            scheduleFrame();
         }
-        sortMomentToFirst(moments.size()-1);
+        Trace.endSection();
     }
 
     @Override
@@ -207,94 +350,90 @@ public class Timeline extends View {
     }
 
 
-    private int touchedMomentIndex = -1;
-    private int touchedMomentPreT = -1;
-    private Drawable touchTagDrawable;
+    // The dragged moment's first tag, -1 if nothing is dragged, and where its icon goes.
+    private int dragTag = -1, dragColor;
+    private float dragTagX;
     @Override
     public boolean onTouchEvent(MotionEvent event) {
         int action = event.getAction();
         float touchX = event.getX();
 
+        // Unless a moment is being dragged, or is about to be, the finger moves the viewport.
+        if (!drag.isDragging() && (action != MotionEvent.ACTION_DOWN || findMomentAt(touchX) == -1)) {
+            scaleGestures.onTouchEvent(event);
+            gestures.onTouchEvent(event);
+            if (action == MotionEvent.ACTION_UP)
+                performClick();
+            return true;
+        }
+
         switch (action) {
-            case MotionEvent.ACTION_DOWN: // Finger just pressed the screen
-                // -1 indicates nothing is visible
-                if (firstVisibleMoment == -1)
+            case MotionEvent.ACTION_DOWN: { // Finger just pressed the screen
+                int touched = findMomentAt(touchX);
+                if (touched == -1)
                     break;
 
-                // Loop through all moments visible and find the one being touched
-                for (int i = firstVisibleMoment; i <= lastVisibleMoment; i++) {
-                    float momentX = calcPosX(moments.get(i));
-
-                    // Checks if within range of the moment
-                    if (touchX < momentX + momentTouchRadius && touchX > momentX - momentTouchRadius) {
-                        touchedMomentIndex = i;
-                        touchedMomentPreT = moments.get(i).t; // Save the moment time
-
-                        // Setup the drawable
-                        touchTagDrawable = tagDrawables[moments.get(i).tags[0]];
-                        touchTagDrawable.setTint(moments.get(touchedMomentIndex).color);
-
-                        break;
-                    }
-                }
+                // A fling or a pan that hasn't been applied yet would move the viewport under the
+                // drag, and with it load or evict days, which shifts the index the drag holds.
+                scroller.forceFinished(true);
+                motion.cancel();
+                Choreographer.getInstance().removeFrameCallback(applyMotion);
+                motionPosted = false;
+
+                drag.begin(touched);
+                dragTag = moments.getTag(touched, 0);
+                dragColor = moments.getColor(touched);
+                dragTagX = calcPosX(moments.getTime(touched));
+                invalidate();
                 break;
+            }
             case MotionEvent.ACTION_MOVE: { // Finger is moving on the screen
-//                Log.d("performClick", "OMG MOVE!");
-                // touchedMomentIndex = -1 indicates that no moment was even touched, the user is just fucking moving their finger...
-                if (touchedMomentIndex == -1)
+                // Not dragging indicates that no moment was even touched, the user is just fucking moving their finger...
+                if (!drag.isDragging())
                     break;
 
-                // Cap touch to padding
-                if (touchX > getWidth()-padding)
-                    touchX = getWidth()-padding;
-                else if (touchX < padding)
-                    touchX = padding;
-
-                int newT = calcT((int) touchX);
-
-                moments.get(touchedMomentIndex).t = newT;
-
-                if (touchedMomentIndex > 0 && newT < moments.get(touchedMomentIndex - 1).t)
-                    replaceMomentWithPrev(touchedMomentIndex--);
-                // As long as we are over the moment that is SUPPOSED to be NEXT to the moment we are replacing, move on an replace this moment instead.
-                else if (touchedMomentIndex < moments.size() - 1 && newT > moments.get(touchedMomentIndex + 1).t)
-                    replaceMomentWithPrev(++touchedMomentIndex);
-
-                // Update the drawable
-                int size = (int) momentRadius*3;
-                int x = (int) (touchX-size/2.0f);
-                // TODO: Round the X, so it snaps together with the moment. Right now it's smooth at small scales.
-                int y = (int) (getHeight() / 2 - size - momentRadius);
-                touchTagDrawable.setBounds(x, y, (int) (size+x), size+y);
+                Trace.beginSection("Timeline.drag");
+                // Snapped, so the tag stays on top of the moment.
+                dragTagX = drag.move(touchX);
 
+                // The moment itself moves once its frame is laid out, the tag right away.
+                scheduleFrame();
                 invalidate();
+                metrics.touchInvalidated(event.getEventTime(), SystemClock.uptimeMillis());
+                Trace.endSection();
                 break;
             }
             case MotionEvent.ACTION_UP: // Finger just released the screen
-                // Sort the moments again.
-                if (touchedMomentIndex > -1) {
-
-                    // Check if we CAN overlap THEN if we overlapped, if we did, place the moment back!
-                    if (
-                        (touchedMomentIndex < moments.size() - 1 && moments.get(touchedMomentIndex).t == moments.get(touchedMomentIndex+1).t)
-                            ||
-                            (touchedMomentIndex > 0 && moments.get(touchedMomentIndex).t == moments.get(touchedMomentIndex-1).t)
-                    ) {
+                if (drag.isDragging()) {
+                    int dragged = drag.index(), startT = drag.startTime();
+                    int endT = moments.getTime(dragged), color = moments.getColor(dragged);
+                    long tags = moments.getTags(dragged);
+
+                    // Sort the moments again, if we overlapped another moment it's placed back.
+                    if (drag.end())
+                        journal.moved(startT, color, tags, endT);
+                    else
                         Toast.makeText(getContext(), "Moment overlap!", Toast.LENGTH_SHORT).show();
 
-                        moments.get(touchedMomentIndex).t = touchedMomentPreT;
-
-                    }
-
-                    sortMoments(touchedMomentIndex);
-                    touchedMomentIndex = -1;
-                    touchTagDrawable = null;
+                    dragTag = -1;
+                    showChunks();
+                    scheduleFrame();
                     invalidate();
                 }
 
                 performClick();
                 break;
 
+            case MotionEvent.ACTION_CANCEL: // A parent took the gesture over, nothing was let go of
+                if (drag.isDragging()) {
+                    drag.cancel();
+                    dragTag = -1;
+                    showChunks();
+                    scheduleFrame();
+                    invalidate();
+                }
+                break;
+
             default:
                 return super.onTouchEvent(event);
         }
@@ -302,19 +441,111 @@ public class Timeline extends View {
         return true;
     }
 
-    // Should be used exclusively for calculating the position of a moment.
-    float calcPosX(Moment moment) {
-        int paddedWidth = getWidth()-(padding*2);
-        float pos = ((moment.t - MainActivity.timeStart) / MainActivity.timeScale) * paddedWidth;
-        pos += padding;
+    // Hovering a mouse or stylus highlights the moment under it.
+    private int hoveredMomentIndex = -1;
+    @Override
+    public boolean onHoverEvent(MotionEvent event) {
+        int hovered = -1;
+        if (event.getAction() != MotionEvent.ACTION_HOVER_EXIT)
+            hovered = findMomentAt(event.getX());
+
+        if (hovered != hoveredMomentIndex) {
+            hoveredMomentIndex = hovered;
+            invalidate();
+        }
+
+        return super.onHoverEvent(event);
+    }
+
+    // Finds the moment closest to x that is within radius pixels of it, -1 if there is none.
+    public int findMomentAt(float x, float radius) {
+        return MomentQueries.findAt(moments, transform, x, radius);
+    }
 
-        return pos;
+    public int findMomentAt(float x) {
+        return findMomentAt(x, momentTouchRadius);
+    }
+
+    // Should be used exclusively for calculating the position of a moment.
+    float calcPosX(float t) {
+        return transform.toX(t);
     }
 
     int calcT(int x) {
-        int paddedWidth = getWidth()-(padding*2);
+        return (int) calcTime(x);
+    }
 
-        return (int) (((x-padding)*1.0f/paddedWidth) * MainActivity.timeScale + MainActivity.timeStart);
+    // The exact inverse of calcPosX.
+    float calcTime(float x) {
+        return transform.toTime(x);
+    }
+
+    // Dragged moments land on multiples of this many minutes.
+    public void setSnapMinutes(int minutes) {
+        drag.setSnapMinutes(minutes);
+    }
+
+    // Moves the viewport on the next frame, with any gestures that happen until then on top.
+    // For anything that changes the viewport often, like a SeekBar.
+    public void moveViewportTo(Viewport viewport) {
+        motion.set(viewport);
+        postMotion();
+    }
+
+    void postMotion() {
+        if (motionPosted)
+            return;
+        motionPosted = true;
+        Choreographer.getInstance().postFrameCallback(applyMotion);
+    }
+
+    // Once a frame, applies what the gestures and the SeekBars did since the last one.
+    void applyMotion(long frameTimeNanos) {
+        motionPosted = false;
+        if (viewport == null)
+            return;
+
+        boolean flinging = scroller.computeScrollOffset();
+        if (flinging) {
+            motion.pan(scroller.getCurrX() - flingLastX);
+            flingLastX = scroller.getCurrX();
+        }
+        if (!motion.isPending())
+            return;
+
+        viewport.set(motion.apply(viewport.get(), transform, getTimeSpan(), getMaxTimeScale()));
+        // Ran into either end, no point in flinging on.
+        if (motion.hitEdge())
+            scroller.forceFinished(true);
+        else if (flinging)
+            postMotion();
+    }
+
+    // Loads the days around the viewport, which changes the moments when it crosses into another day.
+    // Not while dragging, since that moves the dragged moment's index, it's done once the drag ends.
+    void showChunks() {
+        if (chunks != null && viewport != null && !drag.isDragging())
+            chunks.show(transform.timeStart(), transform.timeEnd());
+    }
+
+    // Starts following the given viewport, instead of the one we followed before.
+    public void setViewport(SharedViewport viewport) {
+        if (this.viewport != null)
+            this.viewport.removeListener(this);
+
+        this.viewport = viewport;
+        viewport.addListener(this);
+        onViewportChanged(viewport.get());
+    }
+
+    // The transform is recomputed once here, not for every moment on every frame.
+    @Override
+    public void onViewportChanged(Viewport viewport) {
+        transform.set(getWidth(), padding, viewport);
+        showChunks();
+        // The last frame is moved and stretched to the new viewport until the next one is ready.
+        scheduleFrame();
+        invalidate();
     }
 
     // This is here because getWidth and getHeight obviously wont work immidetly
@@ -323,103 +554,246 @@ public class Timeline extends View {
     protected void onSizeChanged(int w, int h, int oldW, int oldH) {
         super.onSizeChanged(w, h, oldW, oldH);
 
-        invalidate();
+        if (viewport != null)
+            onViewportChanged(viewport.get());
     }
 
-    // -1 for below 0, 1 for above the width, 0 for nothing.
-    // TODO: Includes radius
+    @Override
+    protected void onAttachedToWindow() {
+        super.onAttachedToWindow();
+        layout = new TimelineLayout(new LayoutBuilder(momentRadius, tagIcons.size()), this::postInvalidateOnAnimation);
+        requestedVersion = -1;
+        scheduleFrame();
+    }
 
-    float drawMoment(Canvas canvas, int i, float posX) {
-        float ret = posX;
+    // The layout thread holds on to us, so it ends with the window.
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(applyMotion);
+        motionPosted = false;
+        scroller.forceFinished(true);
+        layout.stop();
+        layout = null;
+    }
 
-        // Draw a line with the moment's color up until the next moment, if there is a next moment
-        if (i < moments.size()-1) {
-            ret = calcPosX(moments.get(i+1));
+    // Sends every color group to the canvas in one go. TimelineLanes draws its lanes with these too.
+    static void flushLines(Canvas canvas, DrawList drawList, Paint linePaint) {
+        for (int g = 0; g < drawList.groupCount(); g++) {
+            if (drawList.lineFloats(g) == 0)
+                continue;
+            linePaint.setColor(drawList.groupColor(g));
+            canvas.drawLines(drawList.lines(g), 0, drawList.lineFloats(g), linePaint);
+        }
+    }
 
-            drawMomentLine(canvas, i, posX, Math.min(ret, getWidth()-padding));
+    static void flushCircles(Canvas canvas, DrawList drawList, Paint momentPaint) {
+        for (int g = 0; g < drawList.groupCount(); g++) {
+            if (drawList.circleFloats(g) == 0)
+                continue;
+            momentPaint.setColor(drawList.groupColor(g));
+            canvas.drawPoints(drawList.circles(g), 0, drawList.circleFloats(g), momentPaint);
         }
+    }
+
+    // Color of the line before the first loaded moment, it comes from a day that isn't loaded if there is one.
+    int colorBeforeMoments() {
+        return chunks != null && chunks.hasColorBefore() ? chunks.colorBefore() : inactiveTimelineColor;
+    }
 
-        momentPaint.setColor(moments.get(i).color);
-        canvas.drawCircle(posX, getHeight() / 2.0f, momentRadius, momentPaint);
+    // Asks the layout thread for a frame, unless the last one asked for still does. Frames reach half
+    // a width past both sides, so panning is a translate of the one there is, and a new one is only
+    // asked for once the pan is a quarter width in, leaving the other quarter for the layout thread.
+    // Cheap enough to call after anything that might have changed the moments or the viewport.
+    void scheduleFrame() {
+        if (layout == null || getWidth() == 0)
+            return;
+
+        int colorBefore = colorBeforeMoments();
+        float panned = (requestedTimeStart - transform.timeStart()) * transform.pxPerMinute();
+        if (moments.getVersion() == requestedVersion && colorBefore == requestedColorBefore
+                && getHeight() == requestedHeight && transform.right() == requestedRight
+                && transform.pxPerMinute() == requestedPxPerMinute && Math.abs(panned) <= getWidth() / 4.0f)
+            return;
+
+        requestedVersion = moments.getVersion();
+        requestedColorBefore = colorBefore;
+        requestedHeight = getHeight();
+        requestedRight = transform.right();
+        requestedTimeStart = transform.timeStart();
+        requestedPxPerMinute = transform.pxPerMinute();
+
+        // Half a width more on both sides, so panning has something to show until the next frame.
+        boolean dropped = layout.request(moments, transform, getHeight() / 2.0f, colorBefore, -getWidth() / 2.0f, getWidth() * 1.5f);
+        metrics.countFrames(1, dropped ? 1 : 0, 0);
+    }
+
+    // Replays the frame where the viewport is now, which is a translate when panning and a stretch
+    // when zooming. Stretching makes the circles a bit wider, but only until the next frame is ready.
+    void drawFrame(Canvas canvas, TimelineLayout.Frame frame) {
+        boolean hardware = canvas.isHardwareAccelerated();
+        if (hardware && frame.serial != recordedSerial) {
+            Trace.beginSection("Timeline.recordFrame");
+            lineNode.setPosition(0, 0, getWidth(), getHeight());
+            RecordingCanvas recordingCanvas = lineNode.beginRecording();
+            flushLines(recordingCanvas, frame.drawList, linePaint);
+            lineNode.endRecording();
+
+            circleNode.setPosition(0, 0, getWidth(), getHeight());
+            recordingCanvas = circleNode.beginRecording();
+            flushCircles(recordingCanvas, frame.drawList, momentPaint);
+            circleNode.endRecording();
+
+            recordedSerial = frame.serial;
+            Trace.endSection();
+        }
+
+        float scale = frame.scaleTo(transform), offset = frame.offsetTo(transform);
+
+        // Lines first so circles are on top, and only lines stay out of the padding.
+        for (int pass = 0; pass < 2; pass++) {
+            canvas.save();
+            if (pass == 0)
+                canvas.clipRect(transform.left(), 0, transform.right(), getHeight());
+            canvas.translate(offset, 0);
+            canvas.scale(scale, 1);
+
+            if (hardware)
+                canvas.drawRenderNode(pass == 0 ? lineNode : circleNode);
+            else if (pass == 0)
+                flushLines(canvas, frame.drawList, linePaint);
+            else
+                flushCircles(canvas, frame.drawList, momentPaint);
+
+            canvas.restore();
+        }
+    }
 
-        return ret;
+    float tagIconY() {
+        return getHeight() / 2.0f - tagIcons.size() - momentRadius;
     }
 
-    // This one draws a line with a moment's color
-    void drawMomentLine(Canvas canvas, int momentIndex, float startX, float endX) {
-        drawLine(canvas, moments.get(momentIndex).color, startX, endX);
+    // The tags of every moment whose row of icons doesn't run into another one, as placed with the
+    // frame, see TagLayout. It's one bitmap, so these are all batched into a single draw by the renderer.
+    void drawTagIcons(Canvas canvas, TimelineLayout.Frame frame) {
+        if (getWidth() == 0)
+            return;
+
+        int size = tagIcons.size();
+        float y = tagIconY();
+        for (int k = 0; k < frame.tagRows; k++) {
+            if (drag.isDragging() && frame.tagMoments[k] == drag.index())
+                continue;
+
+            long packedTags = frame.tagTags[k];
+            int tagCount = MomentStore.tagCount(packedTags);
+            float x = calcPosX(frame.tagTimes[k]) - tagCount * size / 2.0f;
+            tagPaint.setColor(frame.tagColors[k]);
+            for (int j = 0; j < tagCount; j++)
+                tagIcons.draw(canvas, MomentStore.tagAt(packedTags, j), x + j * size, y, tagPaint);
+        }
     }
 
-    void drawLine(Canvas canvas, int color, float startX, float endX) {
-        linePaint.setColor(color);
-        canvas.drawLine(startX, getHeight() / 2.0f, endX, getHeight() / 2.0f, linePaint);
+    // A tick every so many minutes across the screen, batched into one drawLines, and a label under each.
+    void drawTicks(Canvas canvas) {
+        if (getWidth() == 0)
+            return;
+
+        int step = TimeLabels.tickMinutes(transform.pxPerMinute(), tickLabelMinPx);
+        float top = getHeight() / 2.0f + momentRadius, baseline = top + tickLength + tickLabelPaint.getTextSize();
+        // Labels of ticks just off screen still reach into it.
+        float margin = tickLabelMinPx / 2 * transform.minutesPerPx();
+        long first = (long) Math.ceil((transform.timeStart() - margin) / step) * step;
+        long last = (long) Math.floor((transform.timeEnd() + margin) / step) * step;
+
+        int floats = 0;
+        for (long t = Math.max(0, first); t <= last; t += step) {
+            float x = calcPosX(t);
+            if (floats + 4 > tickLines.length)
+                tickLines = Arrays.copyOf(tickLines, tickLines.length * 2);
+            tickLines[floats++] = x;
+            tickLines[floats++] = top;
+            tickLines[floats++] = x;
+            tickLines[floats++] = top + tickLength;
+
+            tickLabel.tick((int) t);
+            canvas.drawText(tickLabel.chars(), 0, tickLabel.length(), x, baseline, tickLabelPaint);
+        }
+        canvas.drawLines(tickLines, 0, floats, tickPaint);
     }
 
     // TODO: This is one of the most expensive functions probably, find ways to optimize it to the level of a normal SeekBar.
     // UPDATE May 18 2023: onDraw is hacked as fuck. Removed some duplicated code though, using drawLine.
+    // UPDATE: Only the visible slice is touched now, plus the lines coming in from both sides.
+    // UPDATE: On hardware the timeline is cut into segments, and only the ones that changed are recorded again.
+    //         They stick to time, so panning just draws them somewhere else.
+    // UPDATE: The layout moved to its own thread, see TimelineLayout. This only replays what it made.
     @Override
     protected void onDraw(Canvas canvas) {
+        long frameStart = metrics.frameStart();
+        Trace.beginSection("Timeline.onDraw");
         super.onDraw(canvas);
 
-        // First of all, draw the tag Drawable if it isn't null.
-        if (touchTagDrawable != null)
-            touchTagDrawable.draw(canvas);
+        // In case something changed without telling us, it returns right away otherwise.
+        scheduleFrame();
 
-        firstVisibleMoment = -1;
-        lastVisibleMoment = moments.size() - 1;
+        drawTicks(canvas);
 
-        float posX = calcPosX(moments.get(0)); // Updated to next at the end of the loop so we put it here
-        // If already the first one is too far then draw an inactive line to it(padded line)
-        if (posX + momentRadius > padding) {
-            firstVisibleMoment = 0;
-            // hackey as fuck again, but we cap the position of the line to the padded location
-            drawLine(canvas, inactiveTimelineColor, padding, Math.min(posX, getWidth()-padding));
-        }
+        TimelineLayout.Frame frame = layout != null ? layout.frame() : null;
+        if (frame != null) {
+            if (frame.serial != shownSerial) {
+                shownSerial = frame.serial;
+                metrics.frameLaidOut(frame.layoutNanos);
+                metrics.countMoments(frame.momentsScanned, frame.momentsDrawn);
+            }
+            drawFrame(canvas, frame);
+            metrics.countFrames(0, 0, 1);
+
+            // The frame may have been laid out further along a pan, so these are looked up again.
+            float radiusT = momentRadius * transform.minutesPerPx();
+            firstVisibleMoment = MomentQueries.firstFrom(moments, transform.timeStart() - radiusT);
+            lastVisibleMoment = MomentQueries.lastUntil(moments, transform.timeEnd() + radiusT);
+            if (firstVisibleMoment > lastVisibleMoment)
+                firstVisibleMoment = lastVisibleMoment = -1;
+
+            // Drawn on its own since it's bigger than the rest.
+            if (frame.levelShift == -1 && hoveredMomentIndex != -1 && hoveredMomentIndex < moments.size()) {
+                momentPaint.setColor(moments.getColor(hoveredMomentIndex));
+                momentPaint.setStrokeWidth(momentRadius*3);
+                canvas.drawPoint(calcPosX(moments.getTime(hoveredMomentIndex)), getHeight() / 2.0f, momentPaint);
+                momentPaint.setStrokeWidth(momentRadius*2);
+            }
 
-        // Bruh. This is actually just a boolean, stating whether or not the last moment was outside the visible area.
-        // Not just a regular boolean, either -1 or 0, now that's cutting edge Android dev right there.
-        // I don't know what I was on when implementing this variable, but I am leaving it as is.
-        int lastOutsideStatus = 0;
+            drawTagIcons(canvas, frame);
+        }
 
-        for (int i = 0; i < moments.size(); i++) {
-            // Moment is above width
-            if (posX - momentRadius > getWidth()-padding) {
-                // Only set lastVisibleMoment to the last visible if there was a first visible
-                if (firstVisibleMoment > -1)
-                    lastVisibleMoment = i - 1;
+        // The dragged moment's tag goes on top of everything.
+        if (dragTag != -1) {
+            // Faded while letting go would put the moment back.
+            tagPaint.setColor(dragColor);
+            tagPaint.setAlpha(drag.isOverlapping() ? 96 : 255);
+            tagIcons.draw(canvas, dragTag, dragTagX - tagIcons.size() / 2.0f, tagIconY(), tagPaint);
+        }
 
-                if (lastOutsideStatus == -1) // So if last one was below 0 too, then we simply draw the last one's line to the end(padded)
-                    drawMomentLine(canvas, i-1, padding, getWidth()-padding);
+        Trace.endSection();
+        metrics.frameEnd(frameStart);
+    }
 
-                break;
-            }
-            // Moment is below 0
-            else if (posX + momentRadius < padding) {
-                lastOutsideStatus = -1;
-                if (i < moments.size()-1)
-                    posX = calcPosX(moments.get(i + 1));
-                else {
-                    // Draw a full line of the last moment's color if it is indeed the LAST MOMENT(padded).
-                    drawMomentLine(canvas, i, padding, getWidth()-padding);
-                }
-            }
-            // Moment is in the visible area
-            else {
-                // If the last moment was below 0 draw it's line to the current one, and do other shit.
-                if (lastOutsideStatus == -1) {
-                    firstVisibleMoment = i;
-                    lastOutsideStatus = 0;
-                    drawMomentLine(canvas, i-1, padding, posX);
-                }
+    public TimelineMetrics getMetrics() {
+        return metrics;
+    }
 
-                // If this is the last one draw a line with this one's color to the end of the visible area.
-                if (i == moments.size()-1 && posX - momentRadius < getWidth()) {
-                    drawMomentLine(canvas, i, Math.max(padding, posX), getWidth() - padding);
-                }
+    // For dumpsys, see MainActivity.dump.
+    public void dumpMetrics(PrintWriter writer, String prefix) {
+        metrics.dump(writer, prefix, moments);
+    }
 
-                posX = drawMoment(canvas, i, posX);
-            }
-        }
+    // Same thing, but to logcat.
+    public void logMetrics() {
+        StringWriter text = new StringWriter();
+        dumpMetrics(new PrintWriter(text), "");
+        for (String line : text.toString().split("\n"))
+            Log.d("Timeline", line);
     }
 
 }
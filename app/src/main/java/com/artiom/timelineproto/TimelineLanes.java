@@ -0,0 +1,361 @@
+package com.artiom.timelineproto;
+
+import android.annotation.SuppressLint;
+import android.content.Context;
+import android.graphics.Canvas;
+import android.graphics.Paint;
+import android.graphics.RecordingCanvas;
+import android.graphics.RenderNode;
+import android.os.Trace;
+import android.view.Choreographer;
+import android.view.GestureDetector;
+import android.view.MotionEvent;
+import android.view.ScaleGestureDetector;
+import android.view.View;
+import android.widget.OverScroller;
+
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+
+// A lane per resource, stacked and scrolled vertically, all following the same viewport.
+// There can be thousands of lanes, so only the ones on screen are laid out and drawn. Their render
+// state (a TimelineLayout and the nodes its frames are recorded in) comes from a LanePool and goes
+// back to it when they scroll out, so scrolling through all of them doesn't make more of it.
+// The lanes are laid out off the UI thread like the Timeline, all on one thread they share.
+// Lanes can't be edited, that's what the Timeline is for.
+@SuppressLint({"ViewConstructor"})
+public class TimelineLanes extends View implements Viewport.Listener {
+    public interface Adapter {
+        int laneCount();
+
+        // The lane's moments, asked for whenever the lane scrolls into view.
+        MomentStore lane(int i);
+    }
+
+    public interface TimeSpan {
+        // Minutes from 0 that pans and zooms stay within, asked for on every pan and zoom.
+        int timeSpan();
+
+        // How far out they may zoom, see Timeline.getMaxTimeScale.
+        default float maxTimeScale() {
+            return timeSpan();
+        }
+    }
+
+    public static final int LANE_HEIGHT = 24; // In DP
+
+    // Whatever a lane on screen needs to be drawn, handed from lane to lane by the pool.
+    // The lane and store are forgotten when it goes back to the pool, see recycle.
+    private static class LaneState {
+        int lane = -1;
+        MomentStore store;
+        final TimelineLayout layout;
+        // Frames before this serial are of the lane the state had before.
+        int laneSerial;
+        // What the last request was for, like Timeline.scheduleFrame.
+        int requestedVersion;
+        float requestedTimeStart, requestedPxPerMinute;
+        int recordedSerial;
+        final RenderNode lines = new RenderNode("LaneLines"), circles = new RenderNode("LaneCircles");
+
+        LaneState(TimelineLayout layout) {
+            this.layout = layout;
+            // Frames cover more than the view, so panning can reuse them.
+            lines.setClipToBounds(false);
+            circles.setClipToBounds(false);
+        }
+    }
+
+    private final LanePool<LaneState> pool;
+    private final LayoutBuilder builder;
+    // Runs one layout at a time, so every lane can share the builder.
+    private final Executor layoutExecutor = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "TimelineLanes");
+        thread.setDaemon(true);
+        return thread;
+    });
+    // Computed once per viewport change and shared by every lane.
+    private final TimeTransform transform = new TimeTransform();
+    private final Paint linePaint, momentPaint;
+    private final float laneHeight;
+    private final int inactiveColor;
+    private SharedViewport viewport;
+    private Adapter adapter;
+    private float scrollY;
+    // How far the viewport can go, see setTimeSpan.
+    private TimeSpan timeSpan = () -> MomentChunks.CHUNK_MINUTES;
+
+    // Vertical scrolls move the lanes right away, pans and zooms go through motion like on the Timeline.
+    private final GestureDetector gestures;
+    private final ScaleGestureDetector scaleGestures;
+    private final OverScroller scroller;
+    private final ViewportMotion motion = new ViewportMotion(MainActivity.TIME_SCALE_MIN);
+    private final Choreographer.FrameCallback applyMotion = this::applyMotion;
+    private boolean motionPosted;
+    private int flingLastX;
+    // A gesture either scrolls or pans, whichever it started out doing. 0 until it's known.
+    private int gestureAxis;
+    private static final int AXIS_X = 1, AXIS_Y = 2;
+
+    public TimelineLanes(Context context) {
+        super(context);
+
+        float density = getResources().getDisplayMetrics().density;
+        float timelineStroke = 1.5f * density;
+        float momentRadius = timelineStroke * 2.5f;
+        laneHeight = LANE_HEIGHT * density;
+        builder = new LayoutBuilder(momentRadius);
+        pool = new LanePool<>(
+                () -> new LaneState(new TimelineLayout(builder, this::postInvalidateOnAnimation, layoutExecutor)),
+                TimelineLanes::recycle);
+        inactiveColor = Util.getColorAttr(context, R.attr.inactiveTimelineColor);
+
+        linePaint = new Paint();
+        linePaint.setStyle(Paint.Style.STROKE);
+        linePaint.setStrokeWidth(timelineStroke);
+        momentPaint = new Paint();
+        momentPaint.setStyle(Paint.Style.STROKE);
+        momentPaint.setStrokeCap(Paint.Cap.ROUND);
+        momentPaint.setStrokeWidth(momentRadius*2);
+
+        setLayerType(View.LAYER_TYPE_HARDWARE, null);
+
+        scroller = new OverScroller(context);
+        gestures = new GestureDetector(context, new GestureDetector.SimpleOnGestureListener() {
+            @Override
+            public boolean onDown(MotionEvent e) {
+                scroller.forceFinished(true);
+                gestureAxis = 0;
+                return true;
+            }
+
+            @Override
+            public boolean onScroll(MotionEvent e1, MotionEvent e2, float distanceX, float distanceY) {
+                if (scaleGestures.isInProgress())
+                    return false;
+                if (gestureAxis == 0)
+                    gestureAxis = Math.abs(distanceX) >= Math.abs(distanceY) ? AXIS_X : AXIS_Y;
+
+                if (gestureAxis == AXIS_X) {
+                    motion.pan(-distanceX);
+                    postMotion();
+                }
+                else
+                    scrollTo(scrollY + distanceY);
+                return true;
+            }
+
+            @Override
+            public boolean onFling(MotionEvent e1, MotionEvent e2, float velocityX, float velocityY) {
+                flingLastX = 0;
+                if (gestureAxis == AXIS_X)
+                    scroller.fling(0, 0, (int) velocityX, 0, Integer.MIN_VALUE, Integer.MAX_VALUE, 0, 0);
+                else
+                    scroller.fling(0, (int) scrollY, 0, (int) -velocityY, 0, 0, 0, (int) maxScrollY());
+                postMotion();
+                return true;
+            }
+        });
+        gestures.setIsLongpressEnabled(false);
+        scaleGestures = new ScaleGestureDetector(context, new ScaleGestureDetector.SimpleOnScaleGestureListener() {
+            @Override
+            public boolean onScale(ScaleGestureDetector detector) {
+                motion.zoom(detector.getScaleFactor(), detector.getFocusX());
+                postMotion();
+                return true;
+            }
+        });
+    }
+
+    public void setAdapter(Adapter adapter) {
+        this.adapter = adapter;
+        // Every state belongs to a lane of the old adapter.
+        pool.bind(0, -1);
+        scrollTo(scrollY);
+        invalidate();
+    }
+
+    // What pans and zooms on the lanes stay within, the Timeline's time span usually. It's asked
+    // for again on every pan and zoom, so it can grow with the moments.
+    public void setTimeSpan(TimeSpan timeSpan) {
+        this.timeSpan = timeSpan;
+    }
+
+    // Call after lanes were added or removed, changes to a lane's moments are noticed on their own.
+    public void notifyLanesChanged() {
+        setAdapter(adapter);
+    }
+
+    public void setViewport(SharedViewport viewport) {
+        if (this.viewport != null)
+            this.viewport.removeListener(this);
+
+        this.viewport = viewport;
+        viewport.addListener(this);
+        onViewportChanged(viewport.get());
+    }
+
+    @Override
+    public void onViewportChanged(Viewport viewport) {
+        transform.set(getWidth(), Timeline.padding, viewport);
+        invalidate();
+    }
+
+    @Override
+    protected void onSizeChanged(int w, int h, int oldW, int oldH) {
+        super.onSizeChanged(w, h, oldW, oldH);
+        scrollTo(scrollY);
+        if (viewport != null)
+            onViewportChanged(viewport.get());
+    }
+
+    @Override
+    protected void onDetachedFromWindow() {
+        super.onDetachedFromWindow();
+        Choreographer.getInstance().removeFrameCallback(applyMotion);
+        motionPosted = false;
+        scroller.forceFinished(true);
+    }
+
+    @Override
+    public boolean onTouchEvent(MotionEvent event) {
+        scaleGestures.onTouchEvent(event);
+        gestures.onTouchEvent(event);
+        if (event.getAction() == MotionEvent.ACTION_UP)
+            performClick();
+        return true;
+    }
+
+    @Override
+    public boolean performClick() {
+        return super.performClick();
+    }
+
+    float maxScrollY() {
+        int lanes = adapter != null ? adapter.laneCount() : 0;
+        return Math.max(0, lanes * laneHeight - getHeight());
+    }
+
+    void scrollTo(float y) {
+        y = Math.min(maxScrollY(), Math.max(0, y));
+        if (y != scrollY) {
+            scrollY = y;
+            invalidate();
+        }
+    }
+
+    void postMotion() {
+        if (motionPosted)
+            return;
+        motionPosted = true;
+        Choreographer.getInstance().postFrameCallback(applyMotion);
+    }
+
+    // Once a frame, like Timeline.applyMotion, but a fling may scroll the lanes instead.
+    void applyMotion(long frameTimeNanos) {
+        motionPosted = false;
+
+        boolean flinging = scroller.computeScrollOffset();
+        if (flinging && gestureAxis == AXIS_X) {
+            motion.pan(scroller.getCurrX() - flingLastX);
+            flingLastX = scroller.getCurrX();
+        }
+        else if (flinging)
+            scrollTo(scroller.getCurrY());
+
+        if (motion.isPending() && viewport != null) {
+            viewport.set(motion.apply(viewport.get(), transform, timeSpan.timeSpan(), timeSpan.maxTimeScale()));
+            if (motion.hitEdge())
+                scroller.forceFinished(true);
+        }
+        if (flinging && !scroller.isFinished())
+            postMotion();
+    }
+
+    @Override
+    protected void onDraw(Canvas canvas) {
+        Trace.beginSection("TimelineLanes.onDraw");
+        super.onDraw(canvas);
+        if (adapter == null || getWidth() == 0) {
+            Trace.endSection();
+            return;
+        }
+
+        int first = (int) (scrollY / laneHeight);
+        int last = Math.min(adapter.laneCount() - 1, (int) ((scrollY + getHeight()) / laneHeight));
+        pool.bind(first, last);
+
+        for (int lane = first; lane <= last; lane++)
+            drawLane(canvas, lane, pool.get(lane), lane * laneHeight - scrollY);
+
+        Trace.endSection();
+    }
+
+    // Lays the lane out again only if it's new to its state, its moments changed, the zoom changed,
+    // or it was panned a quarter width from where it was laid out, like Timeline.scheduleFrame.
+    // Otherwise it's a replay of the newest frame like Timeline.drawFrame.
+    void drawLane(Canvas canvas, int lane, LaneState state, float top) {
+        boolean newLane = state.lane != lane;
+        if (newLane) {
+            state.lane = lane;
+            state.store = adapter.lane(lane);
+        }
+
+        int width = getWidth();
+        float panned = (state.requestedTimeStart - transform.timeStart()) * transform.pxPerMinute();
+        if (newLane || state.requestedVersion != state.store.getVersion()
+                || state.requestedPxPerMinute != transform.pxPerMinute() || Math.abs(panned) > width / 4.0f) {
+            state.layout.request(state.store, transform, laneHeight / 2.0f, inactiveColor, -width / 2.0f, width * 1.5f);
+            if (newLane)
+                state.laneSerial = state.layout.requestSerial();
+            state.requestedVersion = state.store.getVersion();
+            state.requestedTimeStart = transform.timeStart();
+            state.requestedPxPerMinute = transform.pxPerMinute();
+        }
+
+        // Nothing until its first frame is ready, the layout invalidates then.
+        TimelineLayout.Frame frame = state.layout.frame();
+        if (frame == null || frame.serial < state.laneSerial)
+            return;
+
+        boolean hardware = canvas.isHardwareAccelerated();
+        if (hardware && frame.serial != state.recordedSerial) {
+            state.lines.setPosition(0, 0, width, (int) laneHeight);
+            RecordingCanvas recordingCanvas = state.lines.beginRecording();
+            Timeline.flushLines(recordingCanvas, frame.drawList, linePaint);
+            state.lines.endRecording();
+
+            state.circles.setPosition(0, 0, width, (int) laneHeight);
+            recordingCanvas = state.circles.beginRecording();
+            Timeline.flushCircles(recordingCanvas, frame.drawList, momentPaint);
+            state.circles.endRecording();
+            state.recordedSerial = frame.serial;
+        }
+
+        float scale = frame.scaleTo(transform), offset = frame.offsetTo(transform);
+        for (int pass = 0; pass < 2; pass++) {
+            canvas.save();
+            canvas.translate(0, top);
+            if (pass == 0)
+                canvas.clipRect(transform.left(), 0, transform.right(), laneHeight);
+            canvas.translate(offset, 0);
+            canvas.scale(scale, 1);
+
+            if (hardware)
+                canvas.drawRenderNode(pass == 0 ? state.lines : state.circles);
+            else if (pass == 0)
+                Timeline.flushLines(canvas, frame.drawList, linePaint);
+            else
+                Timeline.flushCircles(canvas, frame.drawList, momentPaint);
+
+            canvas.restore();
+        }
+    }
+
+    // A state back in the pool forgets its lane, so it's set up again even if it comes back to the
+    // same index, for another adapter say. Its frames are told apart by laneSerial.
+    static void recycle(LaneState state) {
+        state.lane = -1;
+        state.store = null;
+    }
+}
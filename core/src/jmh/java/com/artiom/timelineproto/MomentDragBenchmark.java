@@ -0,0 +1,55 @@
+package com.artiom.timelineproto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.concurrent.TimeUnit;
+
+// A finger dragging a moment back and forth across the screen, one op is one ACTION_MOVE.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MomentDragBenchmark {
+    private static final int WIDTH = 1080, PADDING = 80;
+    // Pixels per move event, a fairly quick drag.
+    private static final float STEP = 6;
+
+    @Param({"10000", "100000", "1000000"})
+    public int moments;
+
+    @Param({"100"})
+    public int visible;
+
+    private MomentDrag drag;
+    private TimeTransform transform;
+    private float x, direction = STEP;
+
+    @Setup
+    public void setup() {
+        MomentStore store = Moments.realistic(moments, 1);
+        float scale = Moments.scaleFor(store, visible);
+
+        // Somewhere in the middle, with the moment in the middle of the screen.
+        int index = moments / 2;
+        transform = new TimeTransform();
+        transform.set(WIDTH, PADDING, new Viewport(store.getTime(index) - scale / 2, scale));
+
+        drag = new MomentDrag(store, transform);
+        drag.begin(index);
+        x = transform.toX(store.getTime(index));
+    }
+
+    @Benchmark
+    public float move() {
+        x += direction;
+        if (x > transform.right() || x < transform.left())
+            direction = -direction;
+        return drag.move(x);
+    }
+}
@@ -0,0 +1,83 @@
+package com.artiom.timelineproto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// What the timeline does per frame and per touch: find the visible moments, and the moment under a finger.
+// Viewports are spread over the whole store, so the numbers include cache misses like a real pan would.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MomentQueriesBenchmark {
+    private static final int INPUTS = 1024;
+    // A phone in portrait, in pixels
+    private static final int WIDTH = 1080, PADDING = 80;
+    private static final float TOUCH_RADIUS = 50;
+
+    @Param({"10000", "100000", "1000000"})
+    public int moments;
+
+    // Moments on the screen at once
+    @Param({"100"})
+    public int visible;
+
+    private MomentStore store;
+    private final TimeTransform[] transforms = new TimeTransform[INPUTS];
+    private final float[] touches = new float[INPUTS];
+    private int next;
+
+    @Setup
+    public void setup() {
+        store = Moments.realistic(moments, 1);
+        float scale = Moments.scaleFor(store, visible);
+        int last = store.getTime(store.size() - 1);
+
+        Random random = new Random(3);
+        for (int i = 0; i < INPUTS; i++) {
+            transforms[i] = new TimeTransform();
+            transforms[i].set(WIDTH, PADDING, new Viewport(random.nextFloat() * Math.max(0, last - scale), scale));
+            touches[i] = PADDING + random.nextFloat() * (WIDTH - 2 * PADDING);
+        }
+    }
+
+    private int nextInput() {
+        return next = (next + 1) & (INPUTS - 1);
+    }
+
+    // Two binary searches, what updateVisibleRange does.
+    @Benchmark
+    public int visibleRange() {
+        TimeTransform transform = transforms[nextInput()];
+        int first = MomentQueries.firstFrom(store, transform.timeStart());
+        int last = MomentQueries.lastUntil(store, transform.timeEnd());
+        return last - first;
+    }
+
+    // The walk from the first moment that onDraw used to do, to see what the binary search saves.
+    @Benchmark
+    public int visibleRangeScan() {
+        TimeTransform transform = transforms[nextInput()];
+        int first = 0;
+        while (first < store.size() && store.getTime(first) < transform.timeStart())
+            first++;
+        int last = first - 1;
+        while (last + 1 < store.size() && store.getTime(last + 1) <= transform.timeEnd())
+            last++;
+        return last - first;
+    }
+
+    @Benchmark
+    public int hitTest() {
+        int k = nextInput();
+        return MomentQueries.findAt(store, transforms[k], touches[k], TOUCH_RADIUS);
+    }
+}
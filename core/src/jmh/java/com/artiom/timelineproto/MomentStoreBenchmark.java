@@ -0,0 +1,155 @@
+package com.artiom.timelineproto;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+// Editing the store: inserting a moment, loading a whole store at once, and the two ways a moment can get to its new spot,
+// shifting everything in between at once (move) or swapping its way there (sort, what the drag did, kept down here).
+// Every benchmark undoes its edit so the store stays the same size and shape.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class MomentStoreBenchmark {
+    private static final int INPUTS = 1024;
+    // How far a moment jumps, in moments. About what fits on the screen at a normal zoom.
+    private static final int JUMP = 200;
+
+    @Param({"10000", "100000", "1000000"})
+    public int moments;
+
+    private MomentStore store;
+    private int[] times = new int[INPUTS];
+    private int[] from = new int[INPUTS], to = new int[INPUTS];
+    private int next;
+    // The whole store again, shuffled, for loading it from scratch.
+    private MomentBatch shuffled;
+    // The store's columns again, for the swap sort, and how often it swapped, like the store counted.
+    private int[] columnTimes, columnColors;
+    private long[] columnTags;
+    private long swaps;
+
+    @Setup
+    public void setup() {
+        store = Moments.realistic(moments, 1);
+        Random random = new Random(2);
+        int last = store.getTime(store.size() - 1);
+        for (int i = 0; i < INPUTS; i++) {
+            times[i] = random.nextInt(last + 1);
+            from[i] = random.nextInt(moments);
+            to[i] = Math.max(0, Math.min(moments - 1, from[i] + random.nextInt(2 * JUMP + 1) - JUMP));
+        }
+
+        columnTimes = new int[moments];
+        columnColors = new int[moments];
+        columnTags = new long[moments];
+        for (int i = 0; i < moments; i++) {
+            columnTimes[i] = store.getTime(i);
+            columnColors[i] = store.getColor(i);
+            columnTags[i] = store.getTags(i);
+        }
+
+        shuffled = new MomentBatch(moments);
+        for (int i = 0; i < moments; i++)
+            shuffled.add(store.getTime(i), store.getColor(i), store.getTags(i));
+        for (int i = moments - 1; i > 0; i--) {
+            int j = random.nextInt(i + 1);
+            int t = shuffled.getTime(i);
+            long tags = shuffled.getTags(i);
+            shuffled.setTime(i, shuffled.getTime(j));
+            shuffled.setTags(i, shuffled.getTags(j));
+            shuffled.setTime(j, t);
+            shuffled.setTags(j, tags);
+        }
+    }
+
+    private int nextInput() {
+        return next = (next + 1) & (INPUTS - 1);
+    }
+
+    @Benchmark
+    public int insertRemove() {
+        int i = store.insert(times[nextInput()], 0, 0);
+        store.remove(i);
+        return i;
+    }
+
+    // Loading everything at once, one sort and one merge.
+    @Benchmark
+    public int loadAll() {
+        MomentStore loaded = new MomentStore(moments);
+        loaded.addAll(shuffled);
+        return loaded.size();
+    }
+
+    @Benchmark
+    public int moveAndBack() {
+        int k = nextInput();
+        int t = store.getTime(from[k]);
+        int i = store.move(from[k], store.getTime(to[k]));
+        return store.move(i, t);
+    }
+
+    @Benchmark
+    public int sortAndBack() {
+        int k = nextInput();
+        int t = columnTimes[from[k]];
+        columnTimes[from[k]] = columnTimes[to[k]];
+        sort(from[k]);
+
+        // Equal times make the exact spot ambiguous, but the lower bound is one with that time.
+        int i = lowerBound(columnTimes[to[k]]);
+        columnTimes[i] = t;
+        sort(i);
+        return i;
+    }
+
+    // What the store did before shift, on copies of its columns so it swaps the arrays directly like
+    // it used to, without the setters' listeners. Sorts if only a single moment (the outlier) is out
+    // of place, one swap per moment it passes.
+    private void sort(int i) {
+        if (i < moments - 1 && columnTimes[i] > columnTimes[i + 1]) {
+            for (; i < moments - 1 && columnTimes[i] > columnTimes[i + 1]; i++)
+                swapWithNext(i);
+        }
+        else {
+            for (; i > 0 && columnTimes[i] < columnTimes[i - 1]; i--)
+                swapWithNext(i - 1);
+        }
+    }
+
+    private void swapWithNext(int i) {
+        swaps++;
+        int t = columnTimes[i];
+        columnTimes[i] = columnTimes[i + 1];
+        columnTimes[i + 1] = t;
+
+        int c = columnColors[i];
+        columnColors[i] = columnColors[i + 1];
+        columnColors[i + 1] = c;
+
+        long tg = columnTags[i];
+        columnTags[i] = columnTags[i + 1];
+        columnTags[i + 1] = tg;
+    }
+
+    private int lowerBound(int t) {
+        int lo = 0, hi = moments;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (columnTimes[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+}
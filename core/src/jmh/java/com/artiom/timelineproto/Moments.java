@@ -0,0 +1,50 @@
+package com.artiom.timelineproto;
+
+import java.util.Random;
+
+// Test data for the benchmarks, shaped like a real timeline instead of uniform noise:
+// moments come in bursts (a few tasks logged back to back) separated by longer quiet gaps.
+final class Moments {
+    // Average minutes between two bursts, and between the moments of one burst.
+    static final int BURST_GAP = 20;
+    static final int IN_BURST_GAP = 2;
+
+    private static final int[] PALETTE = {0xFF00BCD4, 0xFFF44336, 0xFFFFEB3B, 0xFF9C27B0, 0xFF4CAF50};
+
+    private Moments() {
+    }
+
+    static MomentStore realistic(int n, long seed) {
+        Random random = new Random(seed);
+        MomentStore store = new MomentStore(n);
+
+        int t = 0;
+        while (store.size() < n) {
+            t += exponential(random, BURST_GAP);
+            int burst = 1 + random.nextInt(6);
+            for (int i = 0; i < burst && store.size() < n; i++) {
+                long tags = 0;
+                int numTags = 1 + random.nextInt(2);
+                for (int k = 0; k < numTags; k++)
+                    tags = MomentStore.withTag(tags, k, random.nextInt(8));
+
+                // Appending in order, so this is a plain write at the end.
+                store.insert(t, PALETTE[random.nextInt(PALETTE.length)], tags);
+                t += exponential(random, IN_BURST_GAP);
+            }
+        }
+
+        return store;
+    }
+
+    // Whole minutes, at least 1 so moments stay apart most of the time.
+    static int exponential(Random random, double mean) {
+        return 1 + (int) (-Math.log(1 - random.nextDouble()) * mean);
+    }
+
+    // Span of a viewport that shows about visibleMoments moments of the given store.
+    static float scaleFor(MomentStore store, int visibleMoments) {
+        int last = store.getTime(store.size() - 1);
+        return Math.max(1, (float) last * visibleMoments / store.size());
+    }
+}
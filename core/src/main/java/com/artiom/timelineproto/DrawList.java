@@ -0,0 +1,108 @@
+package com.artiom.timelineproto;
+
+import java.util.Arrays;
+
+// Collects the lines and circles of a frame grouped by color, so every color costs a single
+// drawLines and a single drawPoints call instead of a setColor + draw call per segment.
+// The buffers are kept between frames, so once they grew big enough a frame allocates nothing.
+public class DrawList {
+    private static final int INITIAL_GROUPS = 8;
+    private static final int INITIAL_FLOATS = 64;
+
+    private int[] colors = new int[INITIAL_GROUPS];
+    // x0, y0, x1, y1 per line
+    private float[][] lines = new float[INITIAL_GROUPS][];
+    private int[] lineFloats = new int[INITIAL_GROUPS];
+    // x, y per circle
+    private float[][] circles = new float[INITIAL_GROUPS][];
+    private int[] circleFloats = new int[INITIAL_GROUPS];
+    private int numGroups;
+
+    // Neighbouring segments usually share a color, so remember the last group.
+    private int lastGroup = -1;
+
+    public void clear() {
+        for (int g = 0; g < numGroups; g++) {
+            lineFloats[g] = 0;
+            circleFloats[g] = 0;
+        }
+        numGroups = 0;
+        lastGroup = -1;
+    }
+
+    public void addLine(int color, float x0, float y0, float x1, float y1) {
+        int g = group(color);
+        float[] buffer = lines[g] = ensure(lines[g], lineFloats[g] + 4);
+        int n = lineFloats[g];
+        buffer[n] = x0;
+        buffer[n + 1] = y0;
+        buffer[n + 2] = x1;
+        buffer[n + 3] = y1;
+        lineFloats[g] = n + 4;
+    }
+
+    public void addCircle(int color, float x, float y) {
+        int g = group(color);
+        float[] buffer = circles[g] = ensure(circles[g], circleFloats[g] + 2);
+        int n = circleFloats[g];
+        buffer[n] = x;
+        buffer[n + 1] = y;
+        circleFloats[g] = n + 2;
+    }
+
+    public int groupCount() {
+        return numGroups;
+    }
+
+    public int groupColor(int g) {
+        return colors[g];
+    }
+
+    public float[] lines(int g) {
+        return lines[g];
+    }
+
+    // In floats, 4 per line.
+    public int lineFloats(int g) {
+        return lineFloats[g];
+    }
+
+    public float[] circles(int g) {
+        return circles[g];
+    }
+
+    // In floats, 2 per circle.
+    public int circleFloats(int g) {
+        return circleFloats[g];
+    }
+
+    private int group(int color) {
+        if (lastGroup != -1 && colors[lastGroup] == color)
+            return lastGroup;
+
+        for (int g = 0; g < numGroups; g++) {
+            if (colors[g] == color)
+                return lastGroup = g;
+        }
+
+        if (numGroups == colors.length) {
+            int newLength = colors.length * 2;
+            colors = Arrays.copyOf(colors, newLength);
+            lines = Arrays.copyOf(lines, newLength);
+            lineFloats = Arrays.copyOf(lineFloats, newLength);
+            circles = Arrays.copyOf(circles, newLength);
+            circleFloats = Arrays.copyOf(circleFloats, newLength);
+        }
+
+        colors[numGroups] = color;
+        return lastGroup = numGroups++;
+    }
+
+    private static float[] ensure(float[] buffer, int length) {
+        if (buffer == null)
+            return new float[Math.max(INITIAL_FLOATS, length)];
+        if (buffer.length < length)
+            return Arrays.copyOf(buffer, Math.max(length, buffer.length * 2));
+        return buffer;
+    }
+}
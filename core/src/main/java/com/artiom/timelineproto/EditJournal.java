@@ -0,0 +1,214 @@
+package com.artiom.timelineproto;
+
+// Undo and redo for the edits the user makes by hand, kept as three longs per edit in a ring, so a
+// long session costs the same as a short one and nothing is allocated per edit.
+// An edit is the moment as it was before it, plus a delta to what it became:
+//   [op << 57 | t << 32 | color] [packed tags] [delta]
+// where delta is the new time minus t for a move, the old color xor the new one for a recolor,
+// and the old tags xor the new ones for a retag. Adds and removes don't need one.
+// t gets 25 bits, MAX_TIME itself needs one more than the 24 below it. Applying an edit
+// either way is finding the moment by its values and one store call. Moments in days that were
+// evicted go through the store's listener instead, see apply.
+// Once the ring is full the oldest edits are dropped, they can't be undone anymore.
+// Edits made while some are undone throw the undone ones away, like everywhere else.
+public class EditJournal {
+    public static final int DEFAULT_CAPACITY = 4096;
+
+    static final int ADD = 1, REMOVE = 2, MOVE = 3, RECOLOR = 4, RETAG = 5;
+    private static final int WORDS = 3;
+    private static final int OP_SHIFT = 57, TIME_MASK = (1 << 25) - 1;
+
+    private final long[] ring;
+    private final int capacity;
+    // Sequence numbers of edits since the journal was made, the ring slot is seq % capacity.
+    // first is the oldest kept, cursor the next to redo, end one past the newest.
+    private long first, cursor, end;
+    private final MomentBatch replayAdds = new MomentBatch();
+
+    public EditJournal() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public EditJournal(int capacity) {
+        this.capacity = Math.max(1, capacity);
+        ring = new long[this.capacity * WORDS];
+    }
+
+    // ---- Recording, after the edit was made to the store ----
+
+    public void added(int t, int color, long packedTags) {
+        record(ADD, t, color, packedTags, 0);
+    }
+
+    public void removed(int t, int color, long packedTags) {
+        record(REMOVE, t, color, packedTags, 0);
+    }
+
+    public void moved(int fromT, int color, long packedTags, int toT) {
+        if (fromT != toT)
+            record(MOVE, fromT, color, packedTags, toT - fromT);
+    }
+
+    // The tags are the moment's, they didn't change.
+    public void recolored(int t, int oldColor, long packedTags, int newColor) {
+        if (oldColor != newColor)
+            record(RECOLOR, t, oldColor, packedTags, oldColor ^ newColor);
+    }
+
+    public void retagged(int t, int color, long oldTags, long newTags) {
+        if (oldTags != newTags)
+            record(RETAG, t, color, oldTags, oldTags ^ newTags);
+    }
+
+    private void record(int op, int t, int color, long packedTags, long delta) {
+        end = cursor;
+        int slot = (int) (end % capacity) * WORDS;
+        ring[slot] = (long) op << OP_SHIFT | (long) t << 32 | (color & 0xFFFFFFFFL);
+        ring[slot + 1] = packedTags;
+        ring[slot + 2] = delta;
+        cursor = ++end;
+        if (end - first > capacity)
+            first = end - capacity;
+    }
+
+    // ---- Undo and redo ----
+
+    public boolean canUndo() {
+        return cursor > first;
+    }
+
+    public boolean canRedo() {
+        return cursor < end;
+    }
+
+    // Edits that can be undone, and ones that fell out of the ring.
+    public int undoCount() {
+        return (int) (cursor - first);
+    }
+
+    public long droppedCount() {
+        return first;
+    }
+
+    // Undoes the newest edit that isn't undone yet. Returns false if there was none, or if the
+    // moment it was made to isn't there anymore. It counts as undone either way, so the next undo
+    // goes on to the edit before it.
+    // With chunks, moments of days that aren't resident are looked up in the source, the store
+    // should be trimmed after.
+    public boolean undo(MomentStore store, MomentChunks chunks) {
+        if (!canUndo())
+            return false;
+        cursor--;
+        return apply(store, chunks, cursor, false);
+    }
+
+    public boolean redo(MomentStore store, MomentChunks chunks) {
+        if (!canRedo())
+            return false;
+        return apply(store, chunks, cursor++, true);
+    }
+
+    // Everything is in the store.
+    public boolean undo(MomentStore store) {
+        return undo(store, null);
+    }
+
+    public boolean redo(MomentStore store) {
+        return redo(store, null);
+    }
+
+    // Replays every kept edit up to the cursor into the store, which should be as it was before the
+    // oldest one, a fresh store if droppedCount is 0. Runs of adds go in with one addAll.
+    public void replay(MomentStore store) {
+        replayAdds.clear();
+        for (long seq = first; seq < cursor; seq++) {
+            int slot = (int) (seq % capacity) * WORDS;
+            if ((int) (ring[slot] >>> OP_SHIFT) == ADD) {
+                replayAdds.add((int) (ring[slot] >>> 32) & TIME_MASK, (int) ring[slot], ring[slot + 1]);
+                continue;
+            }
+            flushAdds(store);
+            apply(store, null, seq, true);
+        }
+        flushAdds(store);
+    }
+
+    private void flushAdds(MomentStore store) {
+        if (replayAdds.size() > 0) {
+            store.addAll(replayAdds);
+            replayAdds.clear();
+        }
+    }
+
+    // A moment that isn't in the store but is saved in an evicted day is changed through the
+    // store's listener, as a remove and an insert of what it became. Trimming drops that again.
+    private boolean apply(MomentStore store, MomentChunks chunks, long seq, boolean forward) {
+        int slot = (int) (seq % capacity) * WORDS;
+        long head = ring[slot];
+        int op = (int) (head >>> OP_SHIFT);
+        int t = (int) (head >>> 32) & TIME_MASK;
+        int color = (int) head;
+        long packedTags = ring[slot + 1];
+        long delta = ring[slot + 2];
+
+        // Adds and removes are each other's undo.
+        if (!forward && (op == ADD || op == REMOVE))
+            op = op == ADD ? REMOVE : ADD;
+        if (op == ADD) {
+            store.insert(t, color, packedTags);
+            return true;
+        }
+
+        // The moment as it is now, and as the edit leaves it.
+        int fromT = t, toT = t, fromColor = color, toColor = color;
+        long fromTags = packedTags, toTags = packedTags;
+        switch (op) {
+            case MOVE:
+                if (forward)
+                    toT = t + (int) delta;
+                else
+                    fromT = t + (int) delta;
+                break;
+            case RECOLOR:
+                if (forward)
+                    toColor = color ^ (int) delta;
+                else
+                    fromColor = color ^ (int) delta;
+                break;
+            case RETAG:
+                if (forward)
+                    toTags = packedTags ^ delta;
+                else
+                    fromTags = packedTags ^ delta;
+                break;
+        }
+
+        int i = MomentQueries.find(store, fromT, fromColor, fromTags);
+        if (i == -1) {
+            if (chunks == null || !chunks.hasEvicted(fromT, fromColor, fromTags))
+                return false;
+            MomentStore.Listener listener = store.getListener();
+            if (listener != null)
+                listener.onMomentRemoved(fromT, fromColor, fromTags);
+            if (op != REMOVE)
+                store.insert(toT, toColor, toTags);
+            return true;
+        }
+
+        switch (op) {
+            case REMOVE:
+                store.remove(i);
+                break;
+            case MOVE:
+                store.move(i, toT);
+                break;
+            case RECOLOR:
+                store.setColor(i, toColor);
+                break;
+            case RETAG:
+                store.setTags(i, toTags);
+                break;
+        }
+        return true;
+    }
+}
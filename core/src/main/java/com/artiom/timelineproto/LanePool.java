@@ -0,0 +1,98 @@
+package com.artiom.timelineproto;
+
+import java.util.ArrayList;
+
+// Gives the lanes that are on screen somewhere to keep their render state, like a RecyclerView
+// does with its views. Lanes that scroll out hand their state back to the pool, and lanes that
+// scroll in take it from there, so there's only ever about a screen's worth of it, however many
+// lanes there are. A state doesn't know which lane it belongs to, whoever uses it has to check,
+// or forget it in the Recycler.
+// The bound lanes are always one run, since they are what's between the top and bottom of the view.
+public class LanePool<S> {
+    public interface Factory<S> {
+        S create();
+    }
+
+    // Called when a state goes back to the pool, to drop whatever it held for its lane.
+    public interface Recycler<S> {
+        void recycle(S state);
+    }
+
+    private final Factory<S> factory;
+    private final Recycler<S> recycler;
+    private final ArrayList<S> free = new ArrayList<>();
+    // States of the bound lanes, bound[lane - from].
+    private Object[] bound = new Object[0];
+    private Object[] scratch = new Object[0];
+    private int from = 0, to = -1;
+    private int created;
+
+    public LanePool(Factory<S> factory) {
+        this(factory, null);
+    }
+
+    public LanePool(Factory<S> factory, Recycler<S> recycler) {
+        this.factory = factory;
+        this.recycler = recycler;
+    }
+
+    // Binds lanes first to last, both inclusive, first > last unbinds everything.
+    // Lanes that were bound already keep their state.
+    public void bind(int first, int last) {
+        int count = Math.max(0, last - first + 1);
+        if (scratch.length < count)
+            scratch = new Object[Math.max(count, scratch.length * 2)];
+
+        // Everything that's leaving goes to the pool first, so the ones coming in can reuse it.
+        for (int lane = from; lane <= to; lane++) {
+            if (lane < first || lane > last) {
+                S state = state(lane);
+                if (recycler != null)
+                    recycler.recycle(state);
+                free.add(state);
+            }
+        }
+        for (int lane = first; lane <= last; lane++) {
+            S state = lane >= from && lane <= to ? state(lane) : null;
+            if (state == null)
+                state = free.isEmpty() ? create() : free.remove(free.size() - 1);
+            scratch[lane - first] = state;
+        }
+
+        Object[] swap = bound;
+        bound = scratch;
+        scratch = swap;
+        for (int i = 0; i < scratch.length; i++)
+            scratch[i] = null;
+        from = first;
+        to = first + count - 1;
+    }
+
+    // The state of a bound lane, null if it isn't bound.
+    public S get(int lane) {
+        return lane >= from && lane <= to ? state(lane) : null;
+    }
+
+    public int boundFrom() {
+        return from;
+    }
+
+    public int boundTo() {
+        return to;
+    }
+
+    // How many states were ever made, it stays at about the most lanes that were on screen at once.
+    public int createdCount() {
+        return created;
+    }
+
+    @SuppressWarnings("unchecked")
+    private S state(int lane) {
+        return (S) bound[lane - from];
+    }
+
+    private S create() {
+        created++;
+        return factory.create();
+    }
+}
@@ -0,0 +1,196 @@
+package com.artiom.timelineproto;
+
+// Turns moments into the lines and circles that draw them, this used to be most of Timeline.onDraw.
+// It only does geometry, so it can run on TimelineLayout's thread against a copy of the moments
+// while the UI thread draws the previous result. Which tag icons fit is worked out here too.
+public class LayoutBuilder {
+    private final float momentRadius, tagIconPx;
+
+    // Only valid during build.
+    private MomentStore moments;
+    private TimeTransform transform;
+    private DrawList drawList;
+    private float y;
+    private int colorBefore;
+    private int scanned, drawn;
+
+    // In pixels, moments are visible if any part of their circle is. No tag icons.
+    public LayoutBuilder(float momentRadius) {
+        this(momentRadius, 0);
+    }
+
+    // tagIconPx is how wide a single tag icon is, 0 if there are none.
+    public LayoutBuilder(float momentRadius, float tagIconPx) {
+        this.momentRadius = momentRadius;
+        this.tagIconPx = tagIconPx;
+    }
+
+    public float tagIconPx() {
+        return tagIconPx;
+    }
+
+    // Lays out everything between fromX and toX into the frame. Lines aren't capped to the padding,
+    // whoever draws the frame clips them. Circles are added if their center is in [fromX, toX).
+    // colorBefore is the line before the first moment in the store, see MomentChunks.colorBefore.
+    public void build(MomentStore moments, MomentSummary summary, TimeTransform transform,
+                      float y, int colorBefore, float fromX, float toX, TimelineLayout.Frame frame) {
+        build(moments, summary, null, transform, y, colorBefore, fromX, toX, frame);
+    }
+
+    // Also puts the moments whose tag icons fit into the frame, tags has to be for the same moments.
+    public void build(MomentStore moments, MomentSummary summary, TagLayout tags, TimeTransform transform,
+                      float y, int colorBefore, float fromX, float toX, TimelineLayout.Frame frame) {
+        this.moments = moments;
+        this.transform = transform;
+        this.drawList = frame.drawList;
+        this.y = y;
+        this.colorBefore = colorBefore;
+        scanned = drawn = 0;
+
+        drawList.clear();
+        updateVisibleRange(frame);
+
+        // Zoomed out so far that moments share pixels, draw the summary instead.
+        MomentSummary.Level level = levelOfDetail(summary, frame);
+        float fromT = transform.toTime(fromX), toT = transform.toTime(toX);
+        if (level != null)
+            drawBuckets(level, fromT, toT, fromX, toX);
+        else
+            drawMoments(MomentQueries.firstFrom(moments, fromT), MomentQueries.lastUntil(moments, toT), fromX, toX);
+        placeTags(tags, fromT, toT, frame);
+
+        frame.timeStart = transform.timeStart();
+        frame.pxPerMinute = transform.pxPerMinute();
+        frame.levelShift = level == null ? -1 : level.shift;
+        frame.momentsScanned = scanned;
+        frame.momentsDrawn = drawn;
+
+        this.moments = null;
+        this.transform = null;
+        this.drawList = null;
+    }
+
+    // Finds the visible moments with two binary searches instead of walking from the first moment.
+    // A moment is visible if any part of its circle is inside the padded area.
+    private void updateVisibleRange(TimelineLayout.Frame frame) {
+        float radiusT = momentRadius * transform.minutesPerPx();
+
+        frame.firstVisible = MomentQueries.firstFrom(moments, transform.timeStart() - radiusT);
+        frame.lastVisible = MomentQueries.lastUntil(moments, transform.timeEnd() + radiusT);
+        // -1 indicates nothing is visible
+        if (frame.firstVisible > frame.lastVisible)
+            frame.firstVisible = frame.lastVisible = -1;
+    }
+
+    // The summary level to draw instead of single moments, null if no two visible moments share a pixel column.
+    private MomentSummary.Level levelOfDetail(MomentSummary summary, TimelineLayout.Frame frame) {
+        if (frame.lastVisible - frame.firstVisible < 1)
+            return null;
+
+        int shift = MomentSummary.shiftFor(transform.minutesPerPx());
+        // A minute is at least a pixel wide, so only moments with the exact same time can share one.
+        if (shift == 0)
+            return null;
+
+        MomentSummary.Level level = summary.level(shift);
+        // Buckets are at least a pixel wide, so this is bounded by the width and not by the moments.
+        int last = level.bucketOf(moments.getTime(frame.lastVisible));
+        for (int b = level.bucketOf(moments.getTime(frame.firstVisible)); b <= last; b++) {
+            if (level.counts[b] > 1)
+                return level;
+        }
+
+        return null;
+    }
+
+    // The placed rows in [fromT, toT). A row is at most MAX_TAGS icons wide, rows that are partly in
+    // there start before it.
+    private void placeTags(TagLayout tags, float fromT, float toT, TimelineLayout.Frame frame) {
+        frame.tagRows = 0;
+        if (tags == null)
+            return;
+
+        TagLayout.Level level = tags.level(transform.pxPerMinute());
+        float margin = MomentStore.MAX_TAGS * tagIconPx / 2 * transform.minutesPerPx();
+        for (int k = level.firstFrom(moments, fromT - margin); k < level.count(); k++) {
+            int i = level.moment(k);
+            if (moments.getTime(i) > toT + margin)
+                break;
+            frame.addTagRow(i, moments.getTime(i), moments.getColor(i), moments.getTags(i));
+        }
+    }
+
+    private int momentColorOr(int i, int color) {
+        return i == -1 ? color : moments.getColor(i);
+    }
+
+    private void drawLine(int color, float startX, float endX) {
+        // Happens when a moment is only visible because of its radius
+        if (endX <= startX)
+            return;
+
+        drawList.addLine(color, startX, y, endX, y);
+    }
+
+    private void addCircle(int color, float x, float fromX, float toX) {
+        if (x < fromX || x >= toX)
+            return;
+
+        drawList.addCircle(color, x, y);
+        drawn++;
+    }
+
+    // Draws a line per run of same colored buckets, and a circle per bucket that has moments in it.
+    private void drawBuckets(MomentSummary.Level level, float fromT, float toT, float left, float right) {
+        int from = Math.max(0, level.bucketOf((int) Math.floor(fromT)));
+        int to = Math.min(level.size()-1, level.bucketOf((int) Math.ceil(toT)));
+
+        // Before the first bucket the timeline didn't start yet, and after the last one the last moment's line goes on.
+        drawLine(colorBefore, left, Math.min(right, transform.toX(level.bucketStart(0))));
+        drawLine(moments.getColor(moments.size()-1), Math.max(left, transform.toX(level.bucketStart(level.size()))), right);
+
+        int runColor = 0;
+        float runStart = 0;
+        for (int b = from; b <= to; b++) {
+            int color = momentColorOr(level.dominant[b], colorBefore);
+            if (b == from || color != runColor) {
+                float x = Math.min(right, Math.max(left, transform.toX(level.bucketStart(b))));
+                if (b != from)
+                    drawLine(runColor, runStart, x);
+                runColor = color;
+                runStart = x;
+            }
+        }
+        if (from <= to)
+            drawLine(runColor, runStart, Math.min(right, transform.toX(level.bucketStart(to+1))));
+
+        for (int b = from; b <= to; b++) {
+            if (level.counts[b] == 0)
+                continue;
+
+            // Only the first bucket can be mostly inactive, and the first moment is in it.
+            int color = momentColorOr(level.dominant[b], moments.getColor(0));
+            addCircle(color, transform.toX((level.minTimes[b] + level.maxTimes[b]) / 2.0f), left, right);
+        }
+        // A bucket counts as one, however many moments it holds.
+        scanned += Math.max(0, to - from + 1);
+    }
+
+    // Draws the moments from first to last one at a time, when zoomed in enough that they don't share pixels.
+    private void drawMoments(int first, int last, float left, float right) {
+        // The line coming in from the left belongs to the moment right before the first one,
+        // if there is no such moment the timeline didn't start yet so it's inactive.
+        float firstX = first <= last ? Math.min(transform.toX(moments.getTime(first)), right) : right;
+        drawLine(first > 0 ? moments.getColor(first - 1) : colorBefore, left, firstX);
+
+        for (int i = first; i <= last; i++) {
+            float posX = transform.toX(moments.getTime(i));
+            // Up until the next moment, or the end of the area if this is the last one.
+            float nextX = i < moments.size()-1 ? Math.min(transform.toX(moments.getTime(i+1)), right) : right;
+
+            drawLine(moments.getColor(i), Math.max(posX, left), nextX);
+            addCircle(moments.getColor(i), posX, left, right);
+        }
+        scanned += Math.max(0, last - first + 1);
+    }
+}
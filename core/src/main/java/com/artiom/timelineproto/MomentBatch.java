@@ -0,0 +1,75 @@
+package com.artiom.timelineproto;
+
+import java.util.Arrays;
+
+// Moments collected in any order before going into a MomentStore all at once, see MomentStore.addAll.
+// Same columns as the store, so a parser reading a day from the backend can just keep appending.
+public class MomentBatch {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    int[] times;
+    int[] colors;
+    long[] tags;
+    int size;
+
+    public MomentBatch() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MomentBatch(int capacity) {
+        capacity = Math.max(capacity, 1);
+        times = new int[capacity];
+        colors = new int[capacity];
+        tags = new long[capacity];
+    }
+
+    // Copies the arrays, they must all be as long as times.
+    public MomentBatch(int[] times, int[] colors, long[] packedTags) {
+        this.times = times.clone();
+        this.colors = colors.clone();
+        this.tags = packedTags.clone();
+        this.size = times.length;
+    }
+
+    public void add(int t, int color, long packedTags) {
+        if (size == times.length) {
+            int newCapacity = size + (size >> 1) + 1;
+            times = Arrays.copyOf(times, newCapacity);
+            colors = Arrays.copyOf(colors, newCapacity);
+            tags = Arrays.copyOf(tags, newCapacity);
+        }
+
+        times[size] = t;
+        colors[size] = color;
+        tags[size] = packedTags;
+        size++;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getTime(int i) {
+        return times[i];
+    }
+
+    public int getColor(int i) {
+        return colors[i];
+    }
+
+    public long getTags(int i) {
+        return tags[i];
+    }
+
+    public void setTime(int i, int t) {
+        times[i] = t;
+    }
+
+    public void setTags(int i, long packedTags) {
+        tags[i] = packedTags;
+    }
+
+    public void clear() {
+        size = 0;
+    }
+}
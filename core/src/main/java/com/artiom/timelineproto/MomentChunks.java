@@ -0,0 +1,168 @@
+package com.artiom.timelineproto;
+
+// Keeps only the days around the viewport in a MomentStore, so a timeline can go on for years
+// while the memory it takes only depends on how much of it is looked at.
+// Time is cut into chunks of CHUNK_MINUTES. The resident chunks are always one run without holes,
+// so the drawing code can keep treating the store as all there is. The only thing it can't see
+// is what comes before the run, which is what colorBefore is for.
+// Loading and evicting chunks is kept from the store's listener, the source has those moments already.
+public class MomentChunks {
+    // Where the moments that aren't resident live, see MomentFile.
+    public interface Source {
+        // Adds the saved moments with times in [fromT, toT) to into, which is empty.
+        void read(int fromT, int toT, MomentStore into);
+
+        // Times of the first and last saved moment, firstTime() > lastTime() if there are none.
+        int firstTime();
+
+        int lastTime();
+
+        // Adds the last saved moment before t to into, which is empty, if there is one.
+        void readLastBefore(int t, MomentStore into);
+    }
+
+    public static final int CHUNK_MINUTES = 24 * 60;
+    // Chunks loaded on each side of the viewport, so they are there before it reaches them.
+    public static final int MARGIN = 1;
+
+    private final MomentStore store;
+    private final Source source;
+    private final int maxChunks;
+    private final MomentStore scratch = new MomentStore();
+
+    // Resident chunks, inclusive, from > to if there are none.
+    private int from = 0, to = -1;
+    private boolean hasColorBefore;
+    private int colorBefore;
+
+    // maxChunks is how many may stay resident, it's only exceeded when the viewport itself needs more.
+    public MomentChunks(MomentStore store, Source source, int maxChunks) {
+        this.store = store;
+        this.source = source;
+        this.maxChunks = Math.max(1, maxChunks);
+    }
+
+    public static int chunkOf(float t) {
+        return Math.max(0, (int) Math.floor(t / CHUNK_MINUTES));
+    }
+
+    public static int chunkStart(int chunk) {
+        return chunk * CHUNK_MINUTES;
+    }
+
+    public int residentFrom() {
+        return from;
+    }
+
+    public int residentTo() {
+        return to;
+    }
+
+    // The widest viewport whose chunks and margins fit in maxChunks wherever it is, a chunk at least.
+    // Zoomed out further than this show would keep everything resident, so don't.
+    public float maxTimeScale() {
+        return Math.max(1, maxChunks - 2 * MARGIN - 1) * (float) CHUNK_MINUTES;
+    }
+
+    public boolean isResident(int t) {
+        int chunk = chunkOf(t);
+        return chunk >= from && chunk <= to;
+    }
+
+    // Whether the moment is in a chunk that isn't resident, for edits to moments that weren't found
+    // in the store. Reads its chunk from the source, so only once the store came up empty.
+    public boolean hasEvicted(int t, int color, long packedTags) {
+        if (isResident(t))
+            return false;
+        scratch.clear();
+        int chunk = chunkOf(t);
+        source.read(chunkStart(chunk), chunkStart(chunk + 1), scratch);
+        return MomentQueries.find(scratch, t, color, packedTags) != -1;
+    }
+
+    // Makes sure the chunks from timeStart to timeEnd and their margins are in the store, evicting the
+    // ones furthest away if there are too many. Returns whether the store changed.
+    public boolean show(float timeStart, float timeEnd) {
+        int wantFrom = Math.max(0, chunkOf(timeStart) - MARGIN), wantTo = chunkOf(timeEnd) + MARGIN;
+        if (wantFrom >= from && wantTo <= to)
+            return false;
+
+        MomentStore.Listener listener = store.getListener();
+        store.setListener(null);
+
+        if (from > to || wantTo < from || wantFrom > to) {
+            // Jumped somewhere else entirely, nothing to keep.
+            store.clear();
+            load(wantFrom, wantTo);
+            from = wantFrom;
+            to = wantTo;
+        }
+        else {
+            if (wantFrom < from) {
+                load(wantFrom, from - 1);
+                from = wantFrom;
+            }
+            if (wantTo > to) {
+                load(to + 1, wantTo);
+                to = wantTo;
+            }
+        }
+
+        // Evict from whichever end is further from what is wanted, never the wanted ones themselves.
+        int newFrom = from, newTo = to;
+        while (newTo - newFrom + 1 > maxChunks && (newFrom < wantFrom || newTo > wantTo)) {
+            if (wantFrom - newFrom >= newTo - wantTo)
+                newFrom++;
+            else
+                newTo--;
+        }
+        store.removeRange(store.lowerBound(chunkStart(newTo + 1)), store.size());
+        store.removeRange(0, store.lowerBound(chunkStart(newFrom)));
+        from = newFrom;
+        to = newTo;
+
+        updateColorBefore();
+        store.setListener(listener);
+        return true;
+    }
+
+    // Drops moments that were added outside the resident chunks. They are saved through the
+    // listener already, and come back once their chunk is shown.
+    public void trim() {
+        MomentStore.Listener listener = store.getListener();
+        store.setListener(null);
+        if (from > to)
+            store.clear();
+        else {
+            store.removeRange(store.lowerBound(chunkStart(to + 1)), store.size());
+            store.removeRange(0, store.lowerBound(chunkStart(from)));
+        }
+        store.setListener(listener);
+    }
+
+    // Whether there is a moment before the resident ones, its line is the one coming in from the left.
+    public boolean hasColorBefore() {
+        return hasColorBefore;
+    }
+
+    public int colorBefore() {
+        return colorBefore;
+    }
+
+    private void load(int chunkFrom, int chunkTo) {
+        scratch.clear();
+        source.read(chunkStart(chunkFrom), chunkStart(chunkTo + 1), scratch);
+        store.addAll(scratch);
+    }
+
+    // One question to the source however many empty days there are before the resident ones.
+    private void updateColorBefore() {
+        hasColorBefore = false;
+        scratch.clear();
+        source.readLastBefore(chunkStart(from), scratch);
+        if (scratch.size() > 0) {
+            hasColorBefore = true;
+            colorBefore = scratch.getColor(scratch.size() - 1);
+        }
+    }
+}
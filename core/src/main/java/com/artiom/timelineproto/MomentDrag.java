@@ -0,0 +1,105 @@
+package com.artiom.timelineproto;
+
+// The part of dragging a moment around that doesn't need a View.
+// A move event shifts the moment to where its new time belongs, so the store is sorted after every
+// event however far the finger jumped. It never allocates and never talks to the user, telling
+// them what went wrong is up to whoever calls end().
+public class MomentDrag {
+    private final MomentStore moments;
+    private final TimeTransform transform;
+
+    private int index = -1;
+    private int preT = -1;
+    private int snapMinutes = 1;
+    private float overlapPx;
+    private boolean overlapping;
+
+    public MomentDrag(MomentStore moments, TimeTransform transform) {
+        this.moments = moments;
+        this.transform = transform;
+    }
+
+    // Dragged moments land on multiples of this, 1 is any minute.
+    public void setSnapMinutes(int minutes) {
+        snapMinutes = Math.max(1, minutes);
+    }
+
+    // Moments closer than this on screen overlap. They never may share a minute, however far in it's zoomed.
+    public void setOverlapPx(float px) {
+        overlapPx = px;
+    }
+
+    // Whether the moment is on top of another one right now, in which case end() would put it back.
+    public boolean isOverlapping() {
+        return overlapping;
+    }
+
+    public boolean isDragging() {
+        return index != -1;
+    }
+
+    // Index of the dragged moment, changes as it passes its neighbours. -1 if nothing is dragged.
+    public int index() {
+        return index;
+    }
+
+    // Where the dragged moment was when the drag began.
+    public int startTime() {
+        return preT;
+    }
+
+    public void begin(int i) {
+        index = i;
+        preT = moments.getTime(i); // Save the moment time
+        overlapping = false;
+    }
+
+    // Moves the moment under x, returns where it landed, which is capped to the padded area and snapped.
+    public float move(float x) {
+        x = transform.clampX(x);
+        // Snapped to the nearest multiple, which may be past the padding on either side. There's room
+        // on the other side in that case.
+        int newT = Math.round(transform.toTime(x) / snapMinutes) * snapMinutes;
+        if (newT < transform.timeStart())
+            newT += snapMinutes;
+        else if (newT > transform.timeEnd())
+            newT -= snapMinutes;
+
+        // Silent, the listener only hears about the drag once it ends.
+        index = moments.shift(index, newT);
+        overlapping = MomentQueries.overlaps(moments, index, overlapMinutes());
+
+        return transform.clampX(transform.toX(newT));
+    }
+
+    // Tells the store's listener where the moment went. Returns false if the moment landed on
+    // another one, in which case it's placed back where it was.
+    public boolean end() {
+        int t = moments.getTime(index);
+        boolean overlap = MomentQueries.overlaps(moments, index, overlapMinutes());
+
+        // Going through move with the old time in place lets the store's listener see the drag as
+        // a single move. The moment's neighbours are already the right ones for t, so it stays put.
+        moments.setTime(index, preT);
+        if (overlap)
+            moments.shift(index, preT);
+        else
+            moments.move(index, t);
+        index = -1;
+        overlapping = false;
+
+        return !overlap;
+    }
+
+    // Puts the moment back where the drag began, for when the gesture is cancelled. The listener
+    // never heard about the drag, so it doesn't hear about this either.
+    public void cancel() {
+        moments.shift(index, preT);
+        index = -1;
+        overlapping = false;
+    }
+
+    private float overlapMinutes() {
+        return Math.max(1, overlapPx * transform.minutesPerPx());
+    }
+}
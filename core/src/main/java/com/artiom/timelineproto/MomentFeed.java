@@ -0,0 +1,230 @@
+package com.artiom.timelineproto;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+// Changes to moments pushed in from anywhere, a live feed for example, and applied to a store in
+// batches. Producers only append to a lock-free queue. The first event after a drain asks the
+// Scheduler for one, which should run drain on the UI thread once a frame at most.
+// A drain first folds all the events of a moment into where it ends up, so a moment that moved
+// ten times since the last frame is moved once, and one that was added and removed again is
+// never touched. New moments go in with a single addAll.
+// The store has no ids, moments are found by what they look like. Moments that look exactly the
+// same are interchangeable anyway.
+public class MomentFeed {
+    public interface Scheduler {
+        // Called on the producer's thread, whoever implements it has to get drain onto the UI thread.
+        void schedule();
+    }
+
+    private static final int ADD = 1, MOVE = 2, REMOVE = 3, RECOLOR = 4;
+
+    private static class Event {
+        final long id;
+        final int op;
+        final int t, color;
+        final long tags;
+
+        Event(long id, int op, int t, int color, long tags) {
+            this.id = id;
+            this.op = op;
+            this.t = t;
+            this.color = color;
+            this.tags = tags;
+        }
+    }
+
+    // What a moment looks like, before and after a drain.
+    private static class State {
+        boolean exists;
+        int t, color;
+        long tags;
+
+        void set(State other) {
+            exists = other.exists;
+            t = other.t;
+            color = other.color;
+            tags = other.tags;
+        }
+    }
+
+    private final Scheduler scheduler;
+    private final ConcurrentLinkedQueue<Event> queue = new ConcurrentLinkedQueue<>();
+    private final AtomicBoolean scheduled = new AtomicBoolean();
+
+    // UI thread only from here on.
+    private final HashMap<Long, State> known = new HashMap<>();
+    private final HashMap<Long, State> changed = new HashMap<>();
+    private final ArrayList<Long> changedOrder = new ArrayList<>();
+    private final ArrayList<State> spare = new ArrayList<>();
+    private final MomentBatch added = new MomentBatch();
+    private long eventsDrained, changesApplied;
+
+    public MomentFeed(Scheduler scheduler) {
+        this.scheduler = scheduler;
+    }
+
+    // ---- Any thread ----
+
+    // Adding an id that's already there replaces it.
+    public void add(long id, int t, int color, long packedTags) {
+        push(new Event(id, ADD, t, color, packedTags));
+    }
+
+    public void move(long id, int t) {
+        push(new Event(id, MOVE, t, 0, 0));
+    }
+
+    public void remove(long id) {
+        push(new Event(id, REMOVE, 0, 0, 0));
+    }
+
+    public void recolor(long id, int color) {
+        push(new Event(id, RECOLOR, 0, color, 0));
+    }
+
+    private void push(Event event) {
+        queue.offer(event);
+        if (scheduled.compareAndSet(false, true))
+            scheduler.schedule();
+    }
+
+    // ---- UI thread ----
+
+    // Events taken off the queue, and changes that were made to the store for them.
+    // The difference is what coalescing saved.
+    public long eventsDrained() {
+        return eventsDrained;
+    }
+
+    public long changesApplied() {
+        return changesApplied;
+    }
+
+    // Applies everything that was queued to the store, returns how many moments changed.
+    // Moments that aren't in the store since their day was evicted are changed through its listener.
+    // Ones the user changed or removed in the meantime aren't the feed's anymore, their changes are
+    // dropped and their ids forgotten.
+    public int drain(MomentStore store, MomentChunks chunks) {
+        // Anything pushed after this schedules another drain, at worst it finds nothing.
+        scheduled.set(false);
+
+        Event event;
+        while ((event = queue.poll()) != null) {
+            eventsDrained++;
+            State state = changed.get(event.id);
+            if (state == null) {
+                state = obtain();
+                State before = known.get(event.id);
+                if (before != null)
+                    state.set(before);
+                changed.put(event.id, state);
+                changedOrder.add(event.id);
+            }
+            fold(state, event);
+        }
+
+        int count = 0;
+        added.clear();
+        for (int k = 0; k < changedOrder.size(); k++) {
+            long id = changedOrder.get(k);
+            State after = changed.get(id);
+            State before = known.get(id);
+            if (apply(store, chunks, before, after))
+                count++;
+
+            if (after.exists) {
+                if (before == null) {
+                    before = obtain();
+                    known.put(id, before);
+                }
+                before.set(after);
+            }
+            else if (before != null)
+                spare.add(known.remove(id));
+            spare.add(after);
+        }
+        if (added.size() > 0)
+            store.addAll(added);
+
+        changed.clear();
+        changedOrder.clear();
+        changesApplied += count;
+        return count;
+    }
+
+    // Everything is in the store.
+    public int drain(MomentStore store) {
+        return drain(store, null);
+    }
+
+    private static void fold(State state, Event event) {
+        switch (event.op) {
+            case ADD:
+                state.exists = true;
+                state.t = MomentStore.clampTime(event.t);
+                state.color = event.color;
+                state.tags = MomentStore.clampTags(event.tags);
+                break;
+            case MOVE:
+                state.t = MomentStore.clampTime(event.t);
+                break;
+            case REMOVE:
+                state.exists = false;
+                break;
+            case RECOLOR:
+                state.color = event.color;
+                break;
+        }
+    }
+
+    // Returns whether anything changed. Clears after.exists if the moment is gone.
+    private boolean apply(MomentStore store, MomentChunks chunks, State before, State after) {
+        boolean existed = before != null;
+        if (!existed && !after.exists)
+            return false;
+        if (!existed) {
+            added.add(after.t, after.color, after.tags);
+            return true;
+        }
+        if (before.t == after.t && before.color == after.color && before.tags == after.tags && after.exists)
+            return false;
+
+        int i = MomentQueries.find(store, before.t, before.color, before.tags);
+        if (i == -1) {
+            if (chunks == null || !chunks.hasEvicted(before.t, before.color, before.tags)) {
+                after.exists = false;
+                return false;
+            }
+            // Evicted, the listener still has to hear about it.
+            MomentStore.Listener listener = store.getListener();
+            if (listener != null)
+                listener.onMomentRemoved(before.t, before.color, before.tags);
+            if (after.exists)
+                store.insert(after.t, after.color, after.tags);
+            return true;
+        }
+
+        if (!after.exists)
+            store.remove(i);
+        else {
+            if (before.color != after.color)
+                store.setColor(i, after.color);
+            if (before.tags != after.tags)
+                store.setTags(i, after.tags);
+            if (before.t != after.t)
+                store.move(i, after.t);
+        }
+        return true;
+    }
+
+    private State obtain() {
+        if (spare.isEmpty())
+            return new State();
+        State state = spare.remove(spare.size() - 1);
+        state.exists = false;
+        return state;
+    }
+}
@@ -0,0 +1,562 @@
+package com.artiom.timelineproto;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+// Keeps moments on disk as a snapshot plus a journal of the edits made since.
+//
+// The snapshot is a MomentStore's columns as they are in memory: a 16 byte header (magic, format,
+// count, generation) then every time, every color and every packed tags, little endian, so 16
+// bytes per moment. It stays mapped, reading a range of time out of it is two binary searches and
+// a copy per column, no parsing and no object per moment, so only what is shown is ever in memory.
+// Every edit the store reports is appended to the journal as a 20 byte record. The journal is also
+// kept in memory and replayed over whatever is read, so a chunk that was evicted comes back edited.
+// Edits are written out as they pile up, and once the journal grows big enough compact() merges
+// it into a fresh snapshot on the executor.
+//
+// Journals are numbered by generation, the snapshot says which generation it includes everything
+// before. If the app dies in the middle of a compaction, the old snapshot and both journals are
+// still there, so nothing is lost.
+//
+// All the methods are meant to be called from the UI thread, the writing happens on the executor,
+// which must run one task at a time and in order.
+public class MomentFile implements MomentStore.Listener, MomentChunks.Source {
+    private static final int MAGIC = 0x314D4C54; // "TLM1"
+    private static final int FORMAT = 1;
+    private static final int HEADER_BYTES = 16;
+    public static final int MOMENT_BYTES = 4 + 4 + 8;
+
+    private static final int OP_ADD = 1, OP_REMOVE = 2, OP_CLEAR = 3;
+    public static final int JOURNAL_RECORD_BYTES = 4 + 4 + 4 + 8;
+    // Compact once replaying the journal costs more than reading a decent snapshot.
+    public static final int COMPACT_JOURNAL_BYTES = 64 * 1024;
+    // Unwritten edits are handed to the executor once there are this many bytes of them, so a crash
+    // loses a few hundred edits at most instead of everything since the app was last paused.
+    public static final int WRITE_JOURNAL_BYTES = 4 * 1024;
+    // Moments per step when compacting, so it never needs the whole history in memory.
+    private static final int COMPACT_STEP = 64 * 1024;
+
+    // The mapped columns of a snapshot.
+    private static class Snapshot {
+        static final Snapshot EMPTY = new Snapshot(IntBuffer.allocate(0), IntBuffer.allocate(0), LongBuffer.allocate(0), 0, 0);
+
+        final IntBuffer times, colors;
+        final LongBuffer tags;
+        final int count, generation;
+        // How much of the journal it took in, for the UI thread to drop once it switches over.
+        int journalBytes;
+
+        Snapshot(IntBuffer times, IntBuffer colors, LongBuffer tags, int count, int generation) {
+            this.times = times;
+            this.colors = colors;
+            this.tags = tags;
+            this.count = count;
+            this.generation = generation;
+        }
+    }
+
+    private final File dir;
+    private final String name;
+    private final Executor executor;
+
+    private Snapshot snapshot = Snapshot.EMPTY;
+    // Every edit since the snapshot, [0, written) is in journal files already.
+    private ByteBuffer journal = newBuffer(4096);
+    private int written;
+    private int generation;
+    // See firstTime and lastTime.
+    private int first = Integer.MAX_VALUE, last = Integer.MIN_VALUE;
+    private final MomentStore lastBefore = new MomentStore();
+
+    private boolean compacting;
+    // Left by the executor for the UI thread.
+    private volatile Snapshot compacted;
+    private volatile boolean compactionFailed;
+    private volatile IOException writeError;
+
+    public MomentFile(File dir, String name, Executor executor) {
+        this.dir = dir;
+        this.name = name;
+        this.executor = executor;
+    }
+
+    File snapshotFile() {
+        return new File(dir, name + ".moments");
+    }
+
+    File journalFile(int generation) {
+        return new File(dir, name + ".journal." + generation);
+    }
+
+    // Maps the snapshot and reads the journals. Nothing is loaded into a store, see read.
+    public void open() throws IOException {
+        snapshot = mapSnapshot(snapshotFile());
+        generation = snapshot.generation;
+        journal.clear();
+
+        for (int g : journalGenerations()) {
+            if (g < snapshot.generation) {
+                // Already in the snapshot, a compaction just didn't get to deleting it.
+                journalFile(g).delete();
+                continue;
+            }
+            readJournal(journalFile(g));
+            generation = g;
+        }
+        written = journal.position();
+        updateRange();
+    }
+
+    // Same as read(Integer.MIN_VALUE, Integer.MAX_VALUE, into).
+    public void readAll(MomentStore into) {
+        read(Integer.MIN_VALUE, Integer.MAX_VALUE, into);
+    }
+
+    @Override
+    public void read(int fromT, int toT, MomentStore into) {
+        adoptCompaction();
+        readRange(snapshot, journal, journal.position(), fromT, toT, into);
+    }
+
+    // Adds can only widen these and removes don't narrow them, so they may be a bit generous.
+    // Kept up to date by record, the timeline asks for them every frame.
+    @Override
+    public int firstTime() {
+        adoptCompaction();
+        return first;
+    }
+
+    @Override
+    public int lastTime() {
+        adoptCompaction();
+        return last;
+    }
+
+    // The whole journal once, when it's read and when a compaction drops part of it.
+    private void updateRange() {
+        first = Integer.MAX_VALUE;
+        last = Integer.MIN_VALUE;
+        int start = journalStart(journal, journal.position());
+        if (start == 0 && snapshot.count > 0) {
+            first = snapshot.times.get(0);
+            last = snapshot.times.get(snapshot.count - 1);
+        }
+        for (int at = start; at < journal.position(); at += JOURNAL_RECORD_BYTES) {
+            if (journal.getInt(at) == OP_ADD) {
+                first = Math.min(first, journal.getInt(at + 4));
+                last = Math.max(last, journal.getInt(at + 4));
+            }
+        }
+    }
+
+    // The moment right before t is usually the snapshot's last one before it or the journal's last
+    // add before it, so the window from there to t is read first. Only if the journal removed those
+    // does it look further back, doubling the window each time.
+    @Override
+    public void readLastBefore(int t, MomentStore into) {
+        adoptCompaction();
+        if (first >= t)
+            return;
+
+        int guess = Integer.MIN_VALUE;
+        int start = journalStart(journal, journal.position());
+        if (start == 0) {
+            int i = lowerBound(snapshot, t) - 1;
+            if (i >= 0)
+                guess = snapshot.times.get(i);
+        }
+        for (int at = start; at < journal.position(); at += JOURNAL_RECORD_BYTES) {
+            int addT = journal.getInt(at + 4);
+            if (journal.getInt(at) == OP_ADD && addT < t)
+                guess = Math.max(guess, addT);
+        }
+        if (guess == Integer.MIN_VALUE)
+            return;
+
+        long from = guess;
+        while (true) {
+            from = Math.max(first, from);
+            lastBefore.clear();
+            readRange(snapshot, journal, journal.position(), (int) from, t, lastBefore);
+            if (lastBefore.size() > 0) {
+                int i = lastBefore.size() - 1;
+                into.insert(lastBefore.getTime(i), lastBefore.getColor(i), lastBefore.getTags(i));
+                return;
+            }
+            if (from <= first)
+                return;
+            from = t - Math.max(MomentChunks.CHUNK_MINUTES, 2L * (t - from));
+        }
+    }
+
+    // Hands the edits recorded since the last flush to the executor, call it when the app goes to
+    // the background. Throws if an earlier write failed.
+    public void flush() throws IOException {
+        IOException error = writeError;
+        if (error != null) {
+            writeError = null;
+            throw error;
+        }
+
+        adoptCompaction();
+        writePending();
+        compactIfBig();
+    }
+
+    private void compactIfBig() {
+        if (!compacting && journal.position() >= COMPACT_JOURNAL_BYTES)
+            compact();
+    }
+
+    private void writePending() {
+        if (journal.position() > written) {
+            final byte[] bytes = Arrays.copyOfRange(journal.array(), written, journal.position());
+            final File file = journalFile(generation);
+            written = journal.position();
+
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try (FileChannel channel = FileChannel.open(file.toPath(),
+                            StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND)) {
+                        writeFully(channel, ByteBuffer.wrap(bytes));
+                    } catch (IOException e) {
+                        writeError = e;
+                    }
+                }
+            });
+        }
+    }
+
+    // Merges the journal into a new snapshot on the executor, edits from now on go to a new journal.
+    // Works from the mapped snapshot and a copy of the journal, so the store isn't involved at all.
+    public void compact() {
+        adoptCompaction();
+        if (compacting)
+            return;
+
+        // Lands in the current journal, which the new snapshot includes.
+        writePending();
+        compacting = true;
+
+        final Snapshot base = snapshot;
+        final int journalBytes = journal.position();
+        final ByteBuffer edits = newBuffer(Math.max(1, journalBytes));
+        edits.put(journal.array(), 0, journalBytes);
+        final int snapshotGeneration = ++generation;
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    File tmp = new File(dir, name + ".moments.tmp");
+                    writeSnapshot(tmp, base, edits, journalBytes, snapshotGeneration);
+                    Files.move(tmp.toPath(), snapshotFile().toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+
+                    for (int g : journalGenerations()) {
+                        if (g < snapshotGeneration)
+                            journalFile(g).delete();
+                    }
+
+                    Snapshot done = mapSnapshot(snapshotFile());
+                    done.journalBytes = journalBytes;
+                    compacted = done;
+                } catch (IOException e) {
+                    writeError = e;
+                    compactionFailed = true;
+                }
+            }
+        });
+    }
+
+    // How much journal a fresh open would replay, in bytes. Includes what wasn't flushed yet.
+    public int journalBytes() {
+        adoptCompaction();
+        return journal.position();
+    }
+
+    // Switches over to the snapshot a finished compaction left, and drops the journal it took in.
+    private void adoptCompaction() {
+        Snapshot done = compacted;
+        if (done != null) {
+            compacted = null;
+            snapshot = done;
+
+            journal.flip();
+            journal.position(done.journalBytes);
+            journal.compact();
+            written -= done.journalBytes;
+            compacting = false;
+            updateRange();
+        }
+        if (compactionFailed) {
+            compactionFailed = false;
+            compacting = false;
+        }
+    }
+
+    // ---- MomentStore.Listener, records into the journal ----
+
+    @Override
+    public void onMomentAdded(int t, int color, long packedTags) {
+        record(OP_ADD, t, color, packedTags);
+    }
+
+    @Override
+    public void onMomentRemoved(int t, int color, long packedTags) {
+        record(OP_REMOVE, t, color, packedTags);
+    }
+
+    @Override
+    public void onMomentsCleared() {
+        record(OP_CLEAR, 0, 0, 0);
+    }
+
+    private void record(int op, int t, int color, long packedTags) {
+        ensureJournal(JOURNAL_RECORD_BYTES);
+        journal.putInt(op).putInt(t).putInt(color).putLong(packedTags);
+        if (op == OP_ADD) {
+            first = Math.min(first, t);
+            last = Math.max(last, t);
+        }
+        else if (op == OP_CLEAR) {
+            first = Integer.MAX_VALUE;
+            last = Integer.MIN_VALUE;
+        }
+
+        if (journal.position() - written >= WRITE_JOURNAL_BYTES) {
+            adoptCompaction();
+            writePending();
+            compactIfBig();
+        }
+    }
+
+    private void ensureJournal(int bytes) {
+        if (journal.remaining() < bytes) {
+            ByteBuffer bigger = newBuffer(Math.max(journal.capacity() * 2, journal.position() + bytes));
+            journal.flip();
+            bigger.put(journal);
+            journal = bigger;
+        }
+    }
+
+    // ---- Reading ----
+
+    // Where replaying starts: after the last clear, which also means the snapshot doesn't count.
+    private static int journalStart(ByteBuffer journal, int journalBytes) {
+        int start = 0;
+        for (int at = 0; at < journalBytes; at += JOURNAL_RECORD_BYTES) {
+            if (journal.getInt(at) == OP_CLEAR)
+                start = at + JOURNAL_RECORD_BYTES;
+        }
+        return start;
+    }
+
+    // The snapshot's moments in [fromT, toT) with the journal replayed over them, into an empty store.
+    // Only reads the buffers' contents, so the executor can use it on the same snapshot.
+    private static void readRange(Snapshot snapshot, ByteBuffer journal, int journalBytes, int fromT, int toT, MomentStore into) {
+        int start = journalStart(journal, journalBytes);
+        if (start == 0) {
+            int lo = lowerBound(snapshot, fromT), hi = lowerBound(snapshot, toT);
+            IntBuffer times = snapshot.times.duplicate(), colors = snapshot.colors.duplicate();
+            LongBuffer tags = snapshot.tags.duplicate();
+            times.position(lo);
+            colors.position(lo);
+            tags.position(lo);
+            into.readColumns(hi - lo, times, colors, tags);
+        }
+
+        for (int at = start; at < journalBytes; at += JOURNAL_RECORD_BYTES) {
+            int t = journal.getInt(at + 4);
+            if (t < fromT || t >= toT)
+                continue;
+
+            int color = journal.getInt(at + 8);
+            long packedTags = journal.getLong(at + 12);
+            if (journal.getInt(at) == OP_ADD)
+                into.insert(t, color, packedTags);
+            else {
+                for (int i = into.lowerBound(t); i < into.size() && into.getTime(i) == t; i++) {
+                    if (into.getColor(i) == color && into.getTags(i) == packedTags) {
+                        into.remove(i);
+                        break;
+                    }
+                }
+            }
+        }
+    }
+
+    private static int lowerBound(Snapshot snapshot, int t) {
+        int lo = 0, hi = snapshot.count;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (snapshot.times.get(mid) < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private static Snapshot mapSnapshot(File file) throws IOException {
+        if (!file.exists())
+            return Snapshot.EMPTY;
+
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            long length = channel.size();
+            if (length < HEADER_BYTES)
+                throw new IOException(file + " is too short for a header");
+
+            // Stays valid after the channel is closed, and after a compaction replaces the file.
+            MappedByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+            map.order(ByteOrder.LITTLE_ENDIAN);
+            int magic = map.getInt(), format = map.getInt(), count = map.getInt(), snapshotGeneration = map.getInt();
+            if (magic != MAGIC || format != FORMAT)
+                throw new IOException(file + " is not a moment file");
+            if (count < 0 || length < HEADER_BYTES + (long) count * MOMENT_BYTES)
+                throw new IOException(file + " is truncated");
+
+            long timesAt = HEADER_BYTES, colorsAt = timesAt + 4L * count, tagsAt = colorsAt + 4L * count;
+            IntBuffer times = column(map, timesAt).asIntBuffer(), colors = column(map, colorsAt).asIntBuffer();
+            LongBuffer tags = column(map, tagsAt).asLongBuffer();
+            times.limit(count);
+            colors.limit(count);
+            tags.limit(count);
+            return new Snapshot(times, colors, tags, count, snapshotGeneration);
+        }
+    }
+
+    // A torn record at the end is ignored.
+    private void readJournal(File file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ)) {
+            int bytes = (int) (channel.size() / JOURNAL_RECORD_BYTES * JOURNAL_RECORD_BYTES);
+            ensureJournal(bytes);
+
+            ByteBuffer into = journal.duplicate();
+            into.limit(journal.position() + bytes);
+            while (into.hasRemaining()) {
+                if (channel.read(into) < 0)
+                    throw new IOException(file + " got shorter while reading it");
+            }
+            for (int at = journal.position(); at < journal.position() + bytes; at += JOURNAL_RECORD_BYTES) {
+                int op = journal.getInt(at);
+                if (op != OP_ADD && op != OP_REMOVE && op != OP_CLEAR)
+                    throw new IOException(file + " has an unknown record at " + at);
+            }
+            journal.position(journal.position() + bytes);
+        }
+    }
+
+    private int[] journalGenerations() {
+        String prefix = name + ".journal.";
+        String[] names = dir.list();
+        if (names == null)
+            return new int[0];
+
+        int[] generations = new int[names.length];
+        int n = 0;
+        for (String fileName : names) {
+            if (!fileName.startsWith(prefix))
+                continue;
+            try {
+                generations[n++] = Integer.parseInt(fileName.substring(prefix.length()));
+            } catch (NumberFormatException ignored) {
+            }
+        }
+
+        generations = Arrays.copyOf(generations, n);
+        Arrays.sort(generations);
+        return generations;
+    }
+
+    // ---- Writing ----
+
+    // Goes over the old snapshot COMPACT_STEP moments at a time, twice: once to count the moments,
+    // since the count goes in the header and sizes the columns, and once to write them.
+    private static void writeSnapshot(File file, Snapshot base, ByteBuffer edits, int editBytes, int snapshotGeneration) throws IOException {
+        MomentStore step = new MomentStore();
+        int steps = base.count / COMPACT_STEP + 1;
+
+        int count = 0;
+        for (int s = 0; s < steps; s++) {
+            step.clear();
+            readStep(base, edits, editBytes, s, steps, step);
+            count += step.size();
+        }
+
+        try (FileChannel channel = FileChannel.open(file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            ByteBuffer header = newBuffer(HEADER_BYTES);
+            header.putInt(MAGIC).putInt(FORMAT).putInt(count).putInt(snapshotGeneration).flip();
+            writeFully(channel, header, 0);
+
+            long timesAt = HEADER_BYTES, colorsAt = timesAt + 4L * count, tagsAt = colorsAt + 4L * count;
+            ByteBuffer times = newBuffer(0), colors = newBuffer(0), tags = newBuffer(0);
+            for (int s = 0; s < steps; s++) {
+                step.clear();
+                readStep(base, edits, editBytes, s, steps, step);
+                int n = step.size();
+                if (tags.capacity() < 8 * n) {
+                    times = newBuffer(4 * n);
+                    colors = newBuffer(4 * n);
+                    tags = newBuffer(8 * n);
+                }
+                times.clear();
+                colors.clear();
+                tags.clear();
+                step.writeColumns(times.asIntBuffer(), colors.asIntBuffer(), tags.asLongBuffer());
+                times.limit(4 * n);
+                colors.limit(4 * n);
+                tags.limit(8 * n);
+
+                writeFully(channel, times, timesAt);
+                writeFully(channel, colors, colorsAt);
+                writeFully(channel, tags, tagsAt);
+                timesAt += 4L * n;
+                colorsAt += 4L * n;
+                tagsAt += 8L * n;
+            }
+            channel.force(false);
+        }
+    }
+
+    // The steps split time at the old snapshot's moments, so together they cover every possible time.
+    private static void readStep(Snapshot base, ByteBuffer edits, int editBytes, int s, int steps, MomentStore into) {
+        int fromT = s == 0 ? Integer.MIN_VALUE : base.times.get(s * COMPACT_STEP);
+        int toT = s == steps - 1 ? Integer.MAX_VALUE : base.times.get((s + 1) * COMPACT_STEP);
+        readRange(base, edits, editBytes, fromT, toT, into);
+    }
+
+    // ---- Helpers ----
+
+    private static ByteBuffer column(ByteBuffer map, long at) {
+        ByteBuffer column = map.duplicate();
+        column.position((int) at);
+        return column.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+    }
+
+    private static void writeFully(FileChannel channel, ByteBuffer buffer, long at) throws IOException {
+        while (buffer.hasRemaining())
+            at += channel.write(buffer, at);
+    }
+}
@@ -0,0 +1,55 @@
+package com.artiom.timelineproto;
+
+// The lookups Timeline does on every frame and every touch, out of the view so they can be
+// tested and benchmarked on a plain JVM.
+public class MomentQueries {
+    private MomentQueries() {
+    }
+
+    // Index of the first moment at or after t.
+    public static int firstFrom(MomentStore store, float t) {
+        return store.lowerBound((int) Math.ceil(t));
+    }
+
+    // Index of the last moment at or before t, -1 if there is none.
+    public static int lastUntil(MomentStore store, float t) {
+        return store.upperBound((int) Math.floor(t)) - 1;
+    }
+
+    // Index of the first moment less than minutes away from t. Together with lastWithin it's two
+    // binary searches, and the k moments in between can then be walked one by one.
+    public static int firstWithin(MomentStore store, float t, float minutes) {
+        return store.lowerBound((int) Math.floor(t - minutes) + 1);
+    }
+
+    // Index of the last moment less than minutes away from t, firstWithin > lastWithin if there are none.
+    public static int lastWithin(MomentStore store, float t, float minutes) {
+        return store.upperBound((int) Math.ceil(t + minutes) - 1) - 1;
+    }
+
+    // Whether another moment is less than minutes away from moment i. With whole minutes, anything
+    // up to 1 only finds moments at the same time.
+    public static boolean overlaps(MomentStore store, int i, float minutes) {
+        int t = store.getTime(i);
+        return lastWithin(store, t, minutes) - firstWithin(store, t, minutes) > 0;
+    }
+
+    // Finds the moment closest to x that is within radius pixels of it, -1 if there is none.
+    // It's a binary search over the times, so it's fine to call it for every hover or long-press event.
+    public static int findAt(MomentStore store, TimeTransform transform, float x, float radius) {
+        int i = store.nearest(transform.toTime(x));
+        if (i == -1 || Math.abs(transform.toX(store.getTime(i)) - x) > radius)
+            return -1;
+        return i;
+    }
+
+    // Index of a moment that looks exactly like this, -1 if there is none. For whoever only knows a
+    // moment by its values, like MomentFeed and EditJournal. Moments that look the same are interchangeable.
+    public static int find(MomentStore store, int t, int color, long packedTags) {
+        for (int i = store.lowerBound(t); i < store.size() && store.getTime(i) == t; i++) {
+            if (store.getColor(i) == color && store.getTags(i) == packedTags)
+                return i;
+        }
+        return -1;
+    }
+}
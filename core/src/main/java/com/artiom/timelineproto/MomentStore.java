@@ -0,0 +1,506 @@
+package com.artiom.timelineproto;
+
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.util.Arrays;
+
+// Holds all the moments of a timeline as parallel primitive arrays, sorted by time.
+// A moment is just an index into the arrays, there is no object per moment, so iterating
+// over tens of thousands of them doesn't chase pointers all over the heap.
+// Pure Java on purpose, no android stuff in here.
+public class MomentStore {
+    // Hears about every moment that comes and goes, so it can be saved somewhere, see MomentFile.
+    // A changed moment is reported as removed and added again. The unsorted functions the drag uses
+    // don't report anything, the drag reports the whole move once it's done.
+    public interface Listener {
+        void onMomentAdded(int t, int color, long packedTags);
+        void onMomentRemoved(int t, int color, long packedTags);
+        void onMomentsCleared();
+    }
+
+    // Told about every change, the silent ones the drag makes too, as the range of times it touched.
+    // For caches that keep themselves up to date instead of being rebuilt, see MomentTotals.
+    // The store may be unsorted for a moment when it's called, see setTime.
+    public interface ChangeListener {
+        void onTimesChanged(int from, int to);
+    }
+
+    public static final int MAX_TAGS = 4;
+    // Times are minutes from the start of the first day, and there can be years of them.
+    // Past 2^24 a float can't tell two minutes apart anymore, and the transform works in floats.
+    public static final int MAX_TIME = 1 << 24;
+
+    // What the validate functions can find, turning these into messages is up to the UI.
+    public static final int VALID = 0;
+    public static final int NEGATIVE_TIME = 1;
+    public static final int TIME_OVERFLOW = 2;
+    public static final int TOO_FEW_TAGS = 3;
+    public static final int TOO_MANY_TAGS = 4;
+    private static final int DEFAULT_CAPACITY = 16;
+
+    // Tags are packed into a single long: tag i sits in bits [8*i, 8*i+8), and the number of tags
+    // sits in the top byte.
+    private static final int TAG_BITS = 8;
+    private static final int TAG_COUNT_SHIFT = 56;
+
+    // In minutes
+    private int[] times;
+    private int[] colors;
+    private long[] tags;
+    private int size;
+    // Bumped on every modification, lets caches built on top of the store know they are stale.
+    private int version;
+    // For TimelineMetrics, cheap enough to always count.
+    // Shifts, and the moments they went past.
+    private long shiftCount, passedCount;
+    private Listener listener;
+    private ChangeListener changeListener;
+
+    public MomentStore() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public MomentStore(int capacity) {
+        capacity = Math.max(capacity, 1);
+        times = new int[capacity];
+        colors = new int[capacity];
+        tags = new long[capacity];
+    }
+
+    // Only one, it's for persistence, not for redrawing. Null to stop listening.
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public Listener getListener() {
+        return listener;
+    }
+
+    // Also only one, null to stop listening.
+    public void setChangeListener(ChangeListener changeListener) {
+        this.changeListener = changeListener;
+    }
+
+    // ---- Validation ----
+
+    public static int validateTime(int t) {
+        if (t < 0)
+            return NEGATIVE_TIME;
+        if (t > MAX_TIME)
+            return TIME_OVERFLOW;
+        return VALID;
+    }
+
+    public static int clampTime(int t) {
+        return Math.max(0, Math.min(t, MAX_TIME));
+    }
+
+    public static int validateTagCount(int numTags) {
+        if (numTags < 1)
+            return TOO_FEW_TAGS;
+        if (numTags > MAX_TAGS)
+            return TOO_MANY_TAGS;
+        return VALID;
+    }
+
+    public static int clampTagCount(int numTags) {
+        return Math.max(1, Math.min(numTags, MAX_TAGS));
+    }
+
+    // Drops the tags past MAX_TAGS, and gives tag 0 to a moment without any.
+    public static long clampTags(long packedTags) {
+        int count = tagCount(packedTags);
+        if (count < 1)
+            return withTag(packedTags, 0, 0);
+        if (count > MAX_TAGS) {
+            long kept = packedTags & ((1L << (MAX_TAGS * TAG_BITS)) - 1);
+            return kept | ((long) MAX_TAGS << TAG_COUNT_SHIFT);
+        }
+        return packedTags;
+    }
+
+    // ---- Tag packing ----
+
+    public static int tagCount(long packedTags) {
+        return (int) (packedTags >>> TAG_COUNT_SHIFT);
+    }
+
+    public static int tagAt(long packedTags, int i) {
+        return (int) ((packedTags >>> (i * TAG_BITS)) & 0xFF);
+    }
+
+    // Returns packedTags with the i'th tag replaced, grows the tag count if needed.
+    public static long withTag(long packedTags, int i, int tag) {
+        int count = Math.max(tagCount(packedTags), i + 1);
+        long mask = 0xFFL << (i * TAG_BITS);
+        packedTags = (packedTags & ~mask) | (((long) tag & 0xFF) << (i * TAG_BITS));
+        packedTags &= ~(0xFFL << TAG_COUNT_SHIFT);
+        return packedTags | ((long) count << TAG_COUNT_SHIFT);
+    }
+
+    public static long packTags(byte[] tagIndices) {
+        long packed = 0;
+        for (int i = 0; i < tagIndices.length; i++)
+            packed = withTag(packed, i, tagIndices[i]);
+        return packed;
+    }
+
+    // ---- Getters ----
+
+    public int size() {
+        return size;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    // How many moments fit before the columns have to grow.
+    public int capacity() {
+        return times.length;
+    }
+
+    public long getShiftCount() {
+        return shiftCount;
+    }
+
+    public long getPassedCount() {
+        return passedCount;
+    }
+
+    public int getTime(int i) {
+        return times[i];
+    }
+
+    public int getColor(int i) {
+        return colors[i];
+    }
+
+    public long getTags(int i) {
+        return tags[i];
+    }
+
+    public int getTagCount(int i) {
+        return tagCount(tags[i]);
+    }
+
+    public int getTag(int i, int tagIndex) {
+        return tagAt(tags[i], tagIndex);
+    }
+
+    // ---- Setters ----
+
+    public void setColor(int i, int color) {
+        version++;
+        if (listener != null) {
+            listener.onMomentRemoved(times[i], colors[i], tags[i]);
+            listener.onMomentAdded(times[i], color, tags[i]);
+        }
+        colors[i] = color;
+        changed(times[i], times[i]);
+    }
+
+    public void setTags(int i, long packedTags) {
+        version++;
+        if (listener != null) {
+            listener.onMomentRemoved(times[i], colors[i], tags[i]);
+            listener.onMomentAdded(times[i], colors[i], packedTags);
+        }
+        tags[i] = packedTags;
+        changed(times[i], times[i]);
+    }
+
+    // Sets the time WITHOUT keeping the store sorted, shift it into place or move it back after.
+    // Exists for the drag code, which puts the old time back before telling the listener with move.
+    public void setTime(int i, int t) {
+        version++;
+        changed(Math.min(times[i], t), Math.max(times[i], t));
+        times[i] = t;
+    }
+
+    // ---- Searching ----
+
+    // Index of the first moment with time >= t, or size() if there is none.
+    public int lowerBound(int t) {
+        int lo = 0, hi = size;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] < t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    // Index of the first moment with time > t, or size() if there is none.
+    public int upperBound(int t) {
+        return upperBoundIn(t, 0, size);
+    }
+
+    // Index of the moment closest to t, -1 if the store is empty.
+    public int nearest(float t) {
+        if (size == 0)
+            return -1;
+
+        int i = lowerBound((int) Math.ceil(t));
+        if (i == size)
+            return size - 1;
+        if (i > 0 && t - times[i - 1] <= times[i] - t)
+            return i - 1;
+        return i;
+    }
+
+    // ---- Sorted modifications ----
+
+    // Inserts the moment after any moment with the same time, returns the index it landed on.
+    public int insert(int t, int color, long packedTags) {
+        version++;
+        ensureCapacity(size + 1);
+
+        int i = upperBound(t);
+        int tail = size - i;
+        System.arraycopy(times, i, times, i + 1, tail);
+        System.arraycopy(colors, i, colors, i + 1, tail);
+        System.arraycopy(tags, i, tags, i + 1, tail);
+
+        times[i] = t;
+        colors[i] = color;
+        tags[i] = packedTags;
+        size++;
+
+        changed(t, t);
+        if (listener != null)
+            listener.onMomentAdded(t, color, packedTags);
+        return i;
+    }
+
+    // Adds a whole batch with one sort of the batch and one merge into the store, instead of an
+    // insert (and its arraycopy of everything after it) per moment.
+    // Ends up exactly like inserting the batch one by one in order would: after equal times.
+    public void addAll(MomentBatch batch) {
+        addAll(batch.times, batch.colors, batch.tags, batch.size());
+    }
+
+    public void addAll(MomentStore other) {
+        addAll(other.times, other.colors, other.tags, other.size);
+    }
+
+    private void addAll(int[] batchTimes, int[] batchColors, long[] batchTags, int count) {
+        if (count == 0)
+            return;
+
+        version++;
+        ensureCapacity(size + count);
+
+        boolean sorted = true;
+        for (int j = 1; j < count && sorted; j++)
+            sorted = batchTimes[j] >= batchTimes[j - 1];
+
+        // Sort the batch by time, the index in the low bits keeps equal times in batch order.
+        long[] order = null;
+        if (!sorted) {
+            order = new long[count];
+            for (int j = 0; j < count; j++)
+                order[j] = ((long) batchTimes[j] << 32) | j;
+            Arrays.sort(order);
+        }
+
+        // Merge from the back, so the existing moments can be moved in place.
+        int i = size - 1, k = size + count - 1;
+        for (int j = count - 1; j >= 0; j--) {
+            int b = sorted ? j : (int) order[j];
+            int t = batchTimes[b];
+            while (i >= 0 && times[i] > t) {
+                times[k] = times[i];
+                colors[k] = colors[i];
+                tags[k] = tags[i];
+                i--;
+                k--;
+            }
+            times[k] = t;
+            colors[k] = batchColors[b];
+            tags[k] = batchTags[b];
+            k--;
+        }
+
+        size += count;
+
+        int first = sorted ? batchTimes[0] : (int) (order[0] >> 32);
+        int last = sorted ? batchTimes[count - 1] : (int) (order[count - 1] >> 32);
+        changed(first, last);
+        if (listener != null) {
+            for (int j = 0; j < count; j++)
+                listener.onMomentAdded(batchTimes[j], batchColors[j], batchTags[j]);
+        }
+    }
+
+    public void remove(int i) {
+        version++;
+        int t = times[i];
+        if (listener != null)
+            listener.onMomentRemoved(t, colors[i], tags[i]);
+        int tail = size - i - 1;
+        System.arraycopy(times, i + 1, times, i, tail);
+        System.arraycopy(colors, i + 1, colors, i, tail);
+        System.arraycopy(tags, i + 1, tags, i, tail);
+        size--;
+        changed(t, t);
+    }
+
+    // Removes the moments in [from, to).
+    public void removeRange(int from, int to) {
+        if (from >= to)
+            return;
+
+        version++;
+        if (listener != null) {
+            for (int i = from; i < to; i++)
+                listener.onMomentRemoved(times[i], colors[i], tags[i]);
+        }
+
+        changed(times[from], times[to - 1]);
+        int tail = size - to;
+        System.arraycopy(times, to, times, from, tail);
+        System.arraycopy(colors, to, colors, from, tail);
+        System.arraycopy(tags, to, tags, from, tail);
+        size -= to - from;
+    }
+
+    // Changes the time of moment i and shifts it to where it belongs, returns its new index.
+    // Also how a drag reports where the moment ended up, times[i] must still be the old time then.
+    public int move(int i, int t) {
+        if (listener != null && times[i] != t) {
+            listener.onMomentRemoved(times[i], colors[i], tags[i]);
+            listener.onMomentAdded(t, colors[i], tags[i]);
+        }
+        return shift(i, t);
+    }
+
+    // Same as move, but the listener isn't told. The drag goes through here on every move event,
+    // so the store stays sorted the whole time, and tells the listener once with move at the end.
+    // Two binary searches and a memmove of the moments in between, which is fast enough that a
+    // tree of some kind isn't worth giving up plain sorted arrays for.
+    public int shift(int i, int t) {
+        version++;
+        shiftCount++;
+        changed(Math.min(times[i], t), Math.max(times[i], t));
+        int color = colors[i];
+        long packedTags = tags[i];
+
+        // Find the destination as if i was already removed.
+        int dst;
+        if (i > 0 && t < times[i - 1]) {
+            dst = upperBoundIn(t, 0, i);
+            int n = i - dst;
+            passedCount += n;
+            System.arraycopy(times, dst, times, dst + 1, n);
+            System.arraycopy(colors, dst, colors, dst + 1, n);
+            System.arraycopy(tags, dst, tags, dst + 1, n);
+        }
+        else if (i < size - 1 && t > times[i + 1]) {
+            dst = upperBoundIn(t, i + 1, size) - 1;
+            int n = dst - i;
+            passedCount += n;
+            System.arraycopy(times, i + 1, times, i, n);
+            System.arraycopy(colors, i + 1, colors, i, n);
+            System.arraycopy(tags, i + 1, tags, i, n);
+        }
+        else
+            dst = i;
+
+        times[dst] = t;
+        colors[dst] = color;
+        tags[dst] = packedTags;
+
+        return dst;
+    }
+
+    public void clear() {
+        version++;
+        size = 0;
+        changed(0, MAX_TIME);
+        if (listener != null)
+            listener.onMomentsCleared();
+    }
+
+    // ---- Bulk copies, for saving and loading ----
+
+    // Replaces everything with count moments read from the buffers, which must already be sorted.
+    // Reported to the listener as a clear plus the new moments.
+    public void readColumns(int count, IntBuffer times, IntBuffer colors, LongBuffer packedTags) {
+        version++;
+        size = 0;
+        ensureCapacity(count);
+        times.get(this.times, 0, count);
+        colors.get(this.colors, 0, count);
+        packedTags.get(this.tags, 0, count);
+        size = count;
+        changed(0, MAX_TIME);
+
+        if (listener != null) {
+            listener.onMomentsCleared();
+            for (int i = 0; i < size; i++)
+                listener.onMomentAdded(this.times[i], this.colors[i], this.tags[i]);
+        }
+    }
+
+    public void writeColumns(IntBuffer times, IntBuffer colors, LongBuffer packedTags) {
+        times.put(this.times, 0, size);
+        colors.put(this.colors, 0, size);
+        packedTags.put(this.tags, 0, size);
+    }
+
+    // Replaces everything with a copy of other, reported like readColumns. Doesn't allocate once
+    // this store has grown as big as other, which is what lets the layout thread keep snapshots.
+    public void copyFrom(MomentStore other) {
+        version++;
+        size = 0;
+        ensureCapacity(other.size);
+        System.arraycopy(other.times, 0, times, 0, other.size);
+        System.arraycopy(other.colors, 0, colors, 0, other.size);
+        System.arraycopy(other.tags, 0, tags, 0, other.size);
+        size = other.size;
+        changed(0, MAX_TIME);
+
+        if (listener != null) {
+            listener.onMomentsCleared();
+            for (int i = 0; i < size; i++)
+                listener.onMomentAdded(times[i], colors[i], tags[i]);
+        }
+    }
+
+    // ---- Internal ----
+
+    private void changed(int from, int to) {
+        if (changeListener != null)
+            changeListener.onTimesChanged(from, to);
+    }
+
+    private int upperBoundIn(int t, int lo, int hi) {
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[mid] <= t)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        return lo;
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= times.length)
+            return;
+
+        int newCapacity = Math.max(capacity, times.length + (times.length >> 1));
+        int[] newTimes = new int[newCapacity];
+        int[] newColors = new int[newCapacity];
+        long[] newTags = new long[newCapacity];
+        System.arraycopy(times, 0, newTimes, 0, size);
+        System.arraycopy(colors, 0, newColors, 0, size);
+        System.arraycopy(tags, 0, newTags, 0, size);
+        times = newTimes;
+        colors = newColors;
+        tags = newTags;
+    }
+}
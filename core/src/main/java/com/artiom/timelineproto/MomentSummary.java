@@ -0,0 +1,132 @@
+package com.artiom.timelineproto;
+
+// A multi-resolution summary of a MomentStore, kind of like mipmaps for a texture.
+// Level k splits the time axis into buckets of 2^k minutes, and for each bucket keeps how many
+// moments are in it, the earliest and latest of them, and which moment's line covers most of it.
+// When zoomed out so far that moments share pixel columns, the timeline draws these buckets
+// instead of the moments themselves.
+// Levels are built lazily, and rebuilt only after the store changed.
+public class MomentSummary {
+    // Enough for any int time span.
+    private static final int MAX_SHIFT = 31;
+
+    public static class Level {
+        public final int shift;
+        // Index of the bucket that holds the first moment, in absolute bucket units (t >> shift).
+        public final int firstBucket;
+        public final int[] counts;
+        public final int[] minTimes;
+        public final int[] maxTimes;
+        // Index of the moment whose line covers the most of the bucket, -1 if that is the inactive
+        // part before the first moment.
+        public final int[] dominant;
+
+        Level(int shift, int firstBucket, int numBuckets) {
+            this.shift = shift;
+            this.firstBucket = firstBucket;
+            counts = new int[numBuckets];
+            minTimes = new int[numBuckets];
+            maxTimes = new int[numBuckets];
+            dominant = new int[numBuckets];
+        }
+
+        public int size() {
+            return counts.length;
+        }
+
+        // Bucket holding time t, may be outside [0, size()).
+        public int bucketOf(int t) {
+            return (t >> shift) - firstBucket;
+        }
+
+        public long bucketStart(int b) {
+            return ((long) b + firstBucket) << shift;
+        }
+    }
+
+    private final MomentStore store;
+    private final Level[] levels = new Level[MAX_SHIFT + 1];
+    private int builtVersion;
+
+    public MomentSummary(MomentStore store) {
+        this.store = store;
+        this.builtVersion = store.getVersion();
+    }
+
+    // The smallest level where a bucket is at least a pixel wide.
+    public static int shiftFor(float minutesPerPixel) {
+        if (minutesPerPixel <= 1)
+            return 0;
+
+        long minutes = (long) Math.ceil(minutesPerPixel);
+        return Math.min(MAX_SHIFT, 64 - Long.numberOfLeadingZeros(minutes - 1));
+    }
+
+    public Level level(int shift) {
+        if (builtVersion != store.getVersion()) {
+            for (int i = 0; i < levels.length; i++)
+                levels[i] = null;
+            builtVersion = store.getVersion();
+        }
+
+        if (levels[shift] == null)
+            levels[shift] = build(shift);
+
+        return levels[shift];
+    }
+
+    private Level build(int shift) {
+        int n = store.size();
+        if (n == 0)
+            return new Level(shift, 0, 0);
+
+        int firstBucket = store.getTime(0) >> shift;
+        int lastBucket = store.getTime(n - 1) >> shift;
+        Level level = new Level(shift, firstBucket, lastBucket - firstBucket + 1);
+
+        for (int i = 0; i < n; i++) {
+            int t = store.getTime(i);
+            int b = level.bucketOf(t);
+            if (level.counts[b] == 0)
+                level.minTimes[b] = t;
+            level.maxTimes[b] = t;
+            level.counts[b]++;
+        }
+
+        // Walk over the lines between moments, merging neighbours with the same color since they
+        // look like one line anyway, and give each bucket to whoever covers the most of it.
+        long[] covered = new long[level.size()];
+        // The inactive line before the first moment
+        cover(level, covered, -1, level.bucketStart(0), store.getTime(0));
+
+        int i = 0;
+        while (i < n) {
+            int run = i;
+            while (run + 1 < n && store.getColor(run + 1) == store.getColor(i))
+                run++;
+
+            // The last line goes on forever, but we only care about it until the end of the last bucket.
+            long end = run + 1 < n ? store.getTime(run + 1) : level.bucketStart(level.size());
+            cover(level, covered, i, store.getTime(i), end);
+
+            i = run + 1;
+        }
+
+        return level;
+    }
+
+    private static void cover(Level level, long[] covered, int moment, long start, long end) {
+        if (end <= start)
+            return;
+
+        int first = level.bucketOf((int) start);
+        int last = Math.min(level.bucketOf((int) (end - 1)), level.size() - 1);
+        for (int b = first; b <= last; b++) {
+            long length = Math.min(end, level.bucketStart(b + 1)) - Math.max(start, level.bucketStart(b));
+            if (length > covered[b]) {
+                covered[b] = length;
+                level.dominant[b] = moment;
+            }
+        }
+    }
+}
@@ -0,0 +1,361 @@
+package com.artiom.timelineproto;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+// How many minutes of a window went to a color or a tag, fast enough to ask on every scrub.
+// The time from a moment to the next one is spent in that moment's color and tags, like the line
+// the Timeline draws there. The last moment's time runs on to the end of whatever window is asked
+// about, the time before the first one doesn't count.
+//
+// Each color and tag is a key, and a moment with it starts a stretch of the key's time that the next
+// moment ends. The minutes in [0, x) are x * (stretches started - ended before x) - (the times they
+// started - the times they ended), so all a key needs is those two sums. They're kept in Fenwick
+// trees over buckets of time, the whole buckets before x are O(log n), the few moments in x's own
+// bucket are added one by one. The buckets are about one per moment, cover the store's times with
+// room to spare on both sides, and keys without moments are dropped.
+//
+// It listens to the store's ChangeListener and catches up when it's asked next. The buckets stay
+// where they are when moments come and go, so only the buckets of the changed times are laid again,
+// and the one of the moment right after, which ends a different stretch now. A drag is that, a few
+// moments per move, and so is adding or removing one. When the store has outgrown the buckets they're
+// laid out again, in O(n), like an ArrayList growing.
+// Only knows about the moments in the store, with MomentChunks that's the days around the viewport.
+// UI thread only, like the store.
+public class MomentTotals implements MomentStore.ChangeListener {
+    private static class Key {
+        final boolean tag;
+        final int value;
+        // 1-based, bucket b is at b + 1. Stretches started minus ended in a bucket, and their times.
+        long[] counts = new long[0];
+        long[] times = new long[0];
+        // Not a tree, the moments with the key in each bucket, and in all of them.
+        int[] starts = new int[0];
+        int moments;
+
+        Key(boolean tag, int value) {
+            this.tag = tag;
+            this.value = value;
+        }
+
+        // Empty trees for that many buckets.
+        void reset(int buckets) {
+            moments = 0;
+            if (counts.length < buckets + 1) {
+                counts = new long[buckets + 1 + buckets / 2];
+                times = new long[counts.length];
+                starts = new int[counts.length];
+                return;
+            }
+            Arrays.fill(counts, 0, buckets + 1, 0);
+            Arrays.fill(times, 0, buckets + 1, 0);
+            Arrays.fill(starts, 0, buckets, 0);
+        }
+    }
+
+    private final MomentStore store;
+    private final ArrayList<Key> keys = new ArrayList<>();
+    // Color keys by color, open addressing so asking for a color doesn't box it. At most half full.
+    private Key[] colorKeys = new Key[16];
+    private int colorCount;
+    private final Key[] tagKeys = new Key[256];
+    private final Key[] momentKeys = new Key[1 + MomentStore.MAX_TAGS];
+    // Bucket b is the minutes [base + (b << shift), base + (b + 1 << shift)), 0 buckets if they need laying out.
+    private int base, shift, buckets;
+    // The times that changed since the totals were last brought up to date.
+    private int dirtyFrom = 0, dirtyTo = MomentStore.MAX_TIME;
+    private long momentsRedone;
+
+    public MomentTotals(MomentStore store) {
+        this.store = store;
+        store.setChangeListener(this);
+    }
+
+    @Override
+    public void onTimesChanged(int from, int to) {
+        if (dirtyFrom > dirtyTo) {
+            dirtyFrom = from;
+            dirtyTo = to;
+        }
+        else {
+            dirtyFrom = Math.min(dirtyFrom, from);
+            dirtyTo = Math.max(dirtyTo, to);
+        }
+    }
+
+    // Minutes in [from, to) that went to the color.
+    public double colorMinutes(int color, float from, float to) {
+        update();
+        return minutes(colorKey(color), from, to);
+    }
+
+    // Minutes in [from, to) that went to moments with the tag, counted once however many times they have it.
+    public double tagMinutes(int tag, float from, float to) {
+        update();
+        return minutes(tag >= 0 && tag < tagKeys.length ? tagKeys[tag] : null, from, to);
+    }
+
+    // How many moments were laid again since it was made, and how many keys there are right
+    // now, for tests and metrics.
+    public long momentsRedone() {
+        return momentsRedone;
+    }
+
+    public int keyCount() {
+        return keys.size();
+    }
+
+    private double minutes(Key key, float from, float to) {
+        if (key == null || to <= from)
+            return 0;
+        return before(key, to) - before(key, from);
+    }
+
+    // Minutes of the key in [0, x).
+    private double before(Key key, float x) {
+        x = Math.max(0, Math.min(MomentStore.MAX_TIME, x));
+        // Stretches that start or end at a time before end count.
+        int end = (int) Math.ceil(x);
+        if (end <= base)
+            return 0;
+        int b = Math.min(buckets, (end - base) >> shift);
+
+        long count = 0, time = 0;
+        for (int j = b; j > 0; j -= j & -j) {
+            count += key.counts[j];
+            time += key.times[j];
+        }
+        for (int i = b < buckets ? store.lowerBound(base + (b << shift)) : store.size();
+             i < store.size() && store.getTime(i) < end; i++) {
+            int t = store.getTime(i);
+            if (has(key, i)) {
+                count++;
+                time += t;
+            }
+            if (i > 0 && has(key, i - 1)) {
+                count--;
+                time -= t;
+            }
+        }
+        return (double) x * count - time;
+    }
+
+    private boolean has(Key key, int i) {
+        if (!key.tag)
+            return store.getColor(i) == key.value;
+        long packedTags = store.getTags(i);
+        for (int j = 0; j < MomentStore.tagCount(packedTags); j++) {
+            if (MomentStore.tagAt(packedTags, j) == key.value)
+                return true;
+        }
+        return false;
+    }
+
+    private void update() {
+        if (dirtyFrom > dirtyTo)
+            return;
+        int from = Math.max(0, dirtyFrom), to = Math.min(MomentStore.MAX_TIME, dirtyTo);
+        dirtyFrom = 1;
+        dirtyTo = 0;
+
+        // The moment after the changed ones ends a different stretch now.
+        int next = store.upperBound(to);
+        int nextTime = next < store.size() ? store.getTime(next) : to;
+        if (buckets == 0 || store.size() > 2 * buckets || from < base || bucket(nextTime) >= buckets
+                || bucket(to) - bucket(from) > buckets / 4) {
+            build();
+            return;
+        }
+
+        redo(bucket(from), bucket(to));
+        if (bucket(nextTime) > bucket(to))
+            redo(bucket(nextTime), bucket(nextTime));
+        dropEmptyKeys();
+    }
+
+    private int bucket(int t) {
+        return (t - base) >> shift;
+    }
+
+    // Takes the buckets out of every key's trees and lays their moments in again, as they are now.
+    private void redo(int from, int to) {
+        for (int k = 0; k < keys.size(); k++) {
+            Key key = keys.get(k);
+            for (int b = from; b <= to; b++) {
+                long count = valueAt(key.counts, b), time = valueAt(key.times, b);
+                if (count != 0 || time != 0)
+                    add(key, b, -count, -time, true);
+                key.moments -= key.starts[b];
+                key.starts[b] = 0;
+            }
+        }
+
+        int first = store.lowerBound(base + (from << shift)), last = store.lowerBound(base + (to + 1 << shift));
+        for (int i = first; i < last; i++)
+            lay(i, true);
+        momentsRedone += last - first;
+    }
+
+    // Lays out the buckets over the store's times and every key's trees from scratch.
+    private void build() {
+        int size = store.size();
+        if (size == 0) {
+            buckets = 0;
+        }
+        else {
+            int first = store.getTime(0), last = store.getTime(size - 1);
+            // A day and half as much again as there is on both sides, for the chunks that come in next.
+            int room = (last - first) / 2 + 1440;
+            base = Math.max(0, first - room);
+            int span = Math.min(MomentStore.MAX_TIME, last + room) - base;
+            shift = 0;
+            while ((span >> shift) >= size)
+                shift++;
+            buckets = (span >> shift) + 1;
+        }
+
+        for (int k = 0; k < keys.size(); k++)
+            keys.get(k).reset(buckets);
+        for (int i = 0; i < size; i++)
+            lay(i, false);
+
+        for (int k = 0; k < keys.size(); k++) {
+            Key key = keys.get(k);
+            // Each node adds itself to its parent, the parent is done with its own children by then.
+            for (int j = 1; j <= buckets; j++) {
+                int parent = j + (j & -j);
+                if (parent <= buckets) {
+                    key.counts[parent] += key.counts[j];
+                    key.times[parent] += key.times[j];
+                }
+            }
+        }
+        dropEmptyKeys();
+        momentsRedone += size;
+    }
+
+    // Moment i starts a stretch of its keys and ends one of the keys of the moment before.
+    // Outside of a tree, only puts it in its own node, for build to add up.
+    private void lay(int i, boolean tree) {
+        int t = store.getTime(i), b = bucket(t);
+        int count = keysOf(i);
+        for (int k = 0; k < count; k++) {
+            Key key = momentKeys[k];
+            add(key, b, 1, t, tree);
+            key.starts[b]++;
+            key.moments++;
+        }
+        if (i == 0)
+            return;
+        count = keysOf(i - 1);
+        for (int k = 0; k < count; k++)
+            add(momentKeys[k], b, -1, -t, tree);
+    }
+
+    private void add(Key key, int b, long count, long time, boolean tree) {
+        for (int j = b + 1; j <= buckets; j += j & -j) {
+            key.counts[j] += count;
+            key.times[j] += time;
+            if (!tree)
+                break;
+        }
+    }
+
+    // What bucket b adds to the tree's sums now.
+    private static long valueAt(long[] tree, int b) {
+        int j = b + 1;
+        long value = tree[j];
+        for (int k = j - 1, stop = j - (j & -j); k > stop; k -= k & -k)
+            value -= tree[k];
+        return value;
+    }
+
+    private void dropEmptyKeys() {
+        boolean colorsDropped = false;
+        for (int k = keys.size() - 1; k >= 0; k--) {
+            Key key = keys.get(k);
+            if (key.moments != 0)
+                continue;
+            keys.remove(k);
+            if (key.tag) {
+                tagKeys[key.value] = null;
+            }
+            else {
+                colorCount--;
+                colorsDropped = true;
+            }
+        }
+        if (colorsDropped)
+            rehashColors(colorKeys.length);
+    }
+
+    private Key colorKey(int color) {
+        for (int i = colorSlot(color); ; i = (i + 1) & (colorKeys.length - 1)) {
+            Key key = colorKeys[i];
+            if (key == null || key.value == color)
+                return key;
+        }
+    }
+
+    private int colorSlot(int color) {
+        int hash = color * 0x9e3779b9;
+        return (hash ^ hash >>> 16) & (colorKeys.length - 1);
+    }
+
+    private void putColorKey(Key key) {
+        if (2 * (colorCount + 1) > colorKeys.length)
+            rehashColors(2 * colorKeys.length);
+        int i = colorSlot(key.value);
+        while (colorKeys[i] != null)
+            i = (i + 1) & (colorKeys.length - 1);
+        colorKeys[i] = key;
+        colorCount++;
+    }
+
+    private void rehashColors(int length) {
+        colorKeys = new Key[length];
+        colorCount = 0;
+        for (int k = 0; k < keys.size(); k++) {
+            if (!keys.get(k).tag)
+                putColorKey(keys.get(k));
+        }
+    }
+
+    // Puts the keys of moment i into momentKeys, its tags once each, and returns how many.
+    private int keysOf(int i) {
+        int count = 0;
+        int value = store.getColor(i);
+        Key color = colorKey(value);
+        if (color == null) {
+            color = newKey(false, value);
+            putColorKey(color);
+        }
+        momentKeys[count++] = color;
+
+        long packedTags = store.getTags(i);
+        int tags = Math.min(MomentStore.tagCount(packedTags), MomentStore.MAX_TAGS);
+        for (int j = 0; j < tags; j++) {
+            int tag = MomentStore.tagAt(packedTags, j);
+            boolean repeated = false;
+            for (int l = 0; l < j && !repeated; l++)
+                repeated = MomentStore.tagAt(packedTags, l) == tag;
+            if (repeated)
+                continue;
+
+            Key key = tagKeys[tag];
+            if (key == null) {
+                key = newKey(true, tag);
+                tagKeys[tag] = key;
+            }
+            momentKeys[count++] = key;
+        }
+        return count;
+    }
+
+    private Key newKey(boolean tag, int value) {
+        Key key = new Key(tag, value);
+        key.reset(buckets);
+        keys.add(key);
+        return key;
+    }
+}
@@ -0,0 +1,36 @@
+package com.artiom.timelineproto;
+
+import java.util.ArrayList;
+
+// Holds the current Viewport and tells the listeners when it changes.
+// Timelines that share one stay in sync, and nobody has to reach into MainActivity for it.
+// Only meant to be used from the UI thread.
+public class SharedViewport {
+    private Viewport viewport;
+    private final ArrayList<Viewport.Listener> listeners = new ArrayList<>();
+
+    public SharedViewport(Viewport viewport) {
+        this.viewport = viewport;
+    }
+
+    public Viewport get() {
+        return viewport;
+    }
+
+    public void set(Viewport viewport) {
+        if (viewport.equals(this.viewport))
+            return;
+
+        this.viewport = viewport;
+        for (int i = 0; i < listeners.size(); i++)
+            listeners.get(i).onViewportChanged(viewport);
+    }
+
+    public void addListener(Viewport.Listener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(Viewport.Listener listener) {
+        listeners.remove(listener);
+    }
+}
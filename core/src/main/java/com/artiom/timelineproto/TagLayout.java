@@ -0,0 +1,114 @@
+package com.artiom.timelineproto;
+
+// Decides which moments get their tag icons drawn, so that no two rows of icons overlap.
+// A moment's tags are drawn as one row centered above it. Going from the first moment to the
+// last, a moment's row is placed if it doesn't run into the row placed before it.
+// Which rows fit only depends on the zoom, so it's worked out once for all moments per zoom level
+// and reused while panning. Zoom levels are size classes, CLASSES_PER_OCTAVE per doubling of the
+// scale, and a level is placed for the smallest scale in it, so nothing overlaps anywhere within it.
+// Placing a level goes over every moment, so it's done on TimelineLayout's thread against the
+// copy a frame is built from, see LayoutBuilder.
+public class TagLayout {
+    public static final int CLASSES_PER_OCTAVE = 4;
+    // Levels kept at once, the least recently used one is rebuilt for a new zoom.
+    public static final int MAX_LEVELS = 4;
+
+    public static class Level {
+        int sizeClass;
+        int version = -1;
+        long lastUsed;
+        // Indices of the placed moments, in ascending order.
+        int[] moments = new int[16];
+        int count;
+
+        public int count() {
+            return count;
+        }
+
+        public int moment(int k) {
+            return moments[k];
+        }
+
+        // The first placed moment at or after t, count() if there is none.
+        public int firstFrom(MomentStore store, float t) {
+            int lo = 0, hi = count;
+            while (lo < hi) {
+                int mid = (lo + hi) >>> 1;
+                if (store.getTime(moments[mid]) < t)
+                    lo = mid + 1;
+                else
+                    hi = mid;
+            }
+            return lo;
+        }
+    }
+
+    private final MomentStore store;
+    private final float iconPx;
+    private final Level[] levels = new Level[MAX_LEVELS];
+    private long uses;
+    private int buildCount;
+
+    // iconPx is how wide a single tag icon is.
+    public TagLayout(MomentStore store, float iconPx) {
+        this.store = store;
+        this.iconPx = iconPx;
+        for (int i = 0; i < levels.length; i++)
+            levels[i] = new Level();
+    }
+
+    public static int sizeClassOf(float pxPerMinute) {
+        return (int) Math.floor(Math.log(pxPerMinute) / Math.log(2) * CLASSES_PER_OCTAVE);
+    }
+
+    // The smallest scale in a size class.
+    public static float minPxPerMinute(int sizeClass) {
+        return (float) Math.pow(2, sizeClass / (double) CLASSES_PER_OCTAVE);
+    }
+
+    // How many times a level was placed, for tests and metrics.
+    public int buildCount() {
+        return buildCount;
+    }
+
+    // The placed moments at this scale. Valid until the store changes or another scale is asked for.
+    public Level level(float pxPerMinute) {
+        int sizeClass = sizeClassOf(pxPerMinute);
+        Level found = null, oldest = levels[0];
+        for (Level level : levels) {
+            if (level.sizeClass == sizeClass && level.version != -1)
+                found = level;
+            if (level.lastUsed < oldest.lastUsed)
+                oldest = level;
+        }
+
+        if (found == null)
+            found = oldest;
+        if (found.sizeClass != sizeClass || found.version != store.getVersion())
+            build(found, sizeClass);
+        found.lastUsed = ++uses;
+        return found;
+    }
+
+    private void build(Level level, int sizeClass) {
+        buildCount++;
+        level.sizeClass = sizeClass;
+        level.version = store.getVersion();
+        level.count = 0;
+        if (level.moments.length < store.size())
+            level.moments = new int[Math.max(store.size(), level.moments.length * 2)];
+
+        // In minutes from here on, at the smallest scale of the class.
+        float minutesPerIcon = iconPx / minPxPerMinute(sizeClass);
+        float placedEnd = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < store.size(); i++) {
+            float t = store.getTime(i);
+            float half = store.getTagCount(i) * minutesPerIcon / 2;
+            if (t - half < placedEnd)
+                continue;
+
+            level.moments[level.count++] = i;
+            placedEnd = t + half;
+        }
+    }
+}
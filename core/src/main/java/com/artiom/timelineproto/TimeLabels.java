@@ -0,0 +1,110 @@
+package com.artiom.timelineproto;
+
+// Writes time labels into a char array it keeps, for TextView.setText(char[], int, int) and
+// Canvas.drawText(char[], ...). The SeekBars relabel on every progress change and the Timeline
+// draws a label per tick every frame, String.format made garbage and parsed its pattern for each.
+// A label is valid until the next one is written, keep one per thread that writes them.
+public class TimeLabels {
+    // Tick spacings that read well on a clock, in minutes. Past a week it keeps doubling.
+    private static final int[] TICK_MINUTES = {1, 2, 5, 10, 15, 30, 60, 120, 180, 360, 720, 1440, 2 * 1440, 7 * 1440};
+
+    private final char[] chars = new char[64];
+    private int length;
+
+    public char[] chars() {
+        return chars;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    // The smallest spacing that keeps ticks at least minPx apart.
+    public static int tickMinutes(float pxPerMinute, float minPx) {
+        for (int step : TICK_MINUTES) {
+            if (step * pxPerMinute >= minPx)
+                return step;
+        }
+        int step = TICK_MINUTES[TICK_MINUTES.length - 1];
+        while (step * pxPerMinute < minPx && step < MomentStore.MAX_TIME)
+            step *= 2;
+        return step;
+    }
+
+    // "Scale: 1.5 hours", what the SeekBars show. Minutes up to an hour, hours up to two days, days after,
+    // the same units and cutoffs MainActivity.setTimeText used with String.format.
+    public TimeLabels duration(String prefix, float minutes) {
+        length = 0;
+        append(prefix);
+        append(": ");
+        if (minutes <= 60) {
+            appendTenths(minutes);
+            append(" minutes");
+        }
+        else if (minutes <= 48 * 60) {
+            appendTenths(minutes / 60);
+            append(" hours");
+        }
+        else {
+            appendTenths(minutes / (24 * 60));
+            append(" days");
+        }
+        return this;
+    }
+
+    // A tick at t minutes from 0, "14:30" within a day and "Day 3" at its start.
+    public TimeLabels tick(int t) {
+        length = 0;
+        int minuteOfDay = t % (24 * 60);
+        if (minuteOfDay == 0) {
+            append("Day ");
+            appendLong(t / (24 * 60) + 1);
+        }
+        else {
+            appendTwoDigits(minuteOfDay / 60);
+            chars[length++] = ':';
+            appendTwoDigits(minuteOfDay % 60);
+        }
+        return this;
+    }
+
+    private void append(String s) {
+        int n = Math.min(s.length(), chars.length - length);
+        s.getChars(0, n, chars, length);
+        length += n;
+    }
+
+    // Like %.1f, halves round up.
+    private void appendTenths(float value) {
+        long tenths = Math.round(value * 10.0);
+        if (tenths < 0) {
+            chars[length++] = '-';
+            tenths = -tenths;
+        }
+        appendLong(tenths / 10);
+        chars[length++] = '.';
+        chars[length++] = (char) ('0' + tenths % 10);
+    }
+
+    private void appendLong(long value) {
+        // Digits come out backwards, so they're written from the end and moved up.
+        int end = chars.length, start = end;
+        do {
+            chars[--start] = (char) ('0' + value % 10);
+            value /= 10;
+        } while (value > 0);
+        int n = end - start;
+        System.arraycopy(chars, start, chars, length, n);
+        length += n;
+    }
+
+    private void appendTwoDigits(int value) {
+        chars[length++] = (char) ('0' + value / 10);
+        chars[length++] = (char) ('0' + value % 10);
+    }
+}
@@ -0,0 +1,75 @@
+package com.artiom.timelineproto;
+
+// Maps times (in minutes) to x positions on the view and back.
+// Only recomputed when the view size or the viewport changes, so drawing and dragging don't keep
+// redoing the same divisions for every moment on every frame.
+public class TimeTransform {
+    private float left, right;
+    private float timeStart, timeScale;
+    private float pxPerMinute, minutesPerPx;
+
+    public void set(int width, int padding, Viewport viewport) {
+        this.left = padding;
+        this.right = width - padding;
+        this.timeStart = viewport.timeStart;
+        this.timeScale = viewport.timeScale;
+
+        float paddedWidth = right - left;
+        pxPerMinute = viewport.pxPerMinute(paddedWidth);
+        minutesPerPx = timeScale / paddedWidth;
+    }
+
+    public void set(TimeTransform other) {
+        left = other.left;
+        right = other.right;
+        timeStart = other.timeStart;
+        timeScale = other.timeScale;
+        pxPerMinute = other.pxPerMinute;
+        minutesPerPx = other.minutesPerPx;
+    }
+
+    public float toX(float t) {
+        return left + (t - timeStart) * pxPerMinute;
+    }
+
+    public float toTime(float x) {
+        return timeStart + (x - left) * minutesPerPx;
+    }
+
+    // Caps x to the padded area.
+    public float clampX(float x) {
+        if (x > right)
+            return right;
+        if (x < left)
+            return left;
+        return x;
+    }
+
+    public float left() {
+        return left;
+    }
+
+    public float right() {
+        return right;
+    }
+
+    public float timeStart() {
+        return timeStart;
+    }
+
+    public float timeScale() {
+        return timeScale;
+    }
+
+    public float timeEnd() {
+        return timeStart + timeScale;
+    }
+
+    public float pxPerMinute() {
+        return pxPerMinute;
+    }
+
+    public float minutesPerPx() {
+        return minutesPerPx;
+    }
+}
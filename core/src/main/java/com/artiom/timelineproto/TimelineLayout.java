@@ -0,0 +1,244 @@
+package com.artiom.timelineproto;
+
+import java.util.Arrays;
+import java.util.concurrent.Executor;
+
+// Runs LayoutBuilder on its own thread, so onDraw only has to replay what's already laid out.
+// The UI thread asks for a frame with request(), which copies what the layout needs and returns
+// right away. If a request comes in before the worker got to the previous one, the previous one is
+// dropped, so a SeekBar sending events faster than frames are built never queues up work.
+// Finished frames are handed over through three buffers: the UI thread draws the front one, the
+// worker builds into the back one, and the newest finished one waits in between until the UI
+// thread takes it. Nothing is allocated once the buffers grew to fit the moments.
+// Layouts that are only a small part of a screen, like the lanes, can share an executor instead
+// of each having a thread of their own.
+public class TimelineLayout {
+    // Called on the worker thread whenever a frame is ready, View.postInvalidateOnAnimation is fine here.
+    public interface Callback {
+        void onFrameReady();
+    }
+
+    // What a frame looks like, read only by whoever holds it.
+    public static class Frame {
+        public final DrawList drawList = new DrawList();
+        // The viewport it was laid out for, drawing it anywhere else is a translate and a scale.
+        public float timeStart, pxPerMinute;
+        // Counts requests, 0 until the first frame was built.
+        public int serial;
+        // -1 if the moments were drawn one by one, otherwise the summary level's shift.
+        public int levelShift;
+        // Indices into the moments the frame was built from, -1 if none are visible.
+        public int firstVisible, lastVisible;
+        public int momentsScanned, momentsDrawn;
+        public long layoutNanos;
+        // The moments whose tag icons are drawn, see TagLayout. Index, time, color and tags of each.
+        public int tagRows;
+        public int[] tagMoments = new int[16], tagTimes = new int[16], tagColors = new int[16];
+        public long[] tagTags = new long[16];
+
+        void addTagRow(int i, int t, int color, long packedTags) {
+            if (tagRows == tagMoments.length) {
+                tagMoments = Arrays.copyOf(tagMoments, tagRows * 2);
+                tagTimes = Arrays.copyOf(tagTimes, tagRows * 2);
+                tagColors = Arrays.copyOf(tagColors, tagRows * 2);
+                tagTags = Arrays.copyOf(tagTags, tagRows * 2);
+            }
+            tagMoments[tagRows] = i;
+            tagTimes[tagRows] = t;
+            tagColors[tagRows] = color;
+            tagTags[tagRows] = packedTags;
+            tagRows++;
+        }
+
+        // Where the frame goes when drawn for another viewport with the same padding:
+        // x on screen = scaleTo(transform) * x in the frame + offsetTo(transform)
+        public float scaleTo(TimeTransform transform) {
+            return transform.pxPerMinute() / pxPerMinute;
+        }
+
+        public float offsetTo(TimeTransform transform) {
+            return transform.left() + (timeStart - transform.timeStart()) * transform.pxPerMinute()
+                    - transform.left() * scaleTo(transform);
+        }
+    }
+
+    // A copy of everything a frame is built from. The UI thread only fills one the worker isn't reading.
+    private static class Request {
+        final MomentStore moments = new MomentStore();
+        final MomentSummary summary = new MomentSummary(moments);
+        // Kept with the copy, so the placement is only redone when the copy or the zoom changes.
+        final TagLayout tags;
+        final TimeTransform transform = new TimeTransform();
+        // Which store and which version of it the moments were copied from.
+        MomentStore source;
+        int sourceVersion;
+        float y, fromX, toX;
+        int colorBefore;
+        int serial;
+
+        Request(float tagIconPx) {
+            tags = tagIconPx > 0 ? new TagLayout(moments, tagIconPx) : null;
+        }
+    }
+
+    private final LayoutBuilder builder;
+    private final Callback callback;
+    private final Object lock = new Object();
+
+    private final Request[] requests;
+    private int requestSerial;
+
+    // Guarded by lock.
+    private Request pending, working;
+    private Frame front = new Frame(), ready = new Frame(), back = new Frame();
+    private boolean readyIsNew;
+    private boolean stopped;
+
+    private Thread worker;
+    private final Executor executor;
+    private final Runnable drain = this::drain;
+    // Guarded by lock, whether drain is queued on or running on the executor.
+    private boolean draining;
+
+    public TimelineLayout(LayoutBuilder builder, Callback callback) {
+        this(builder, callback, null);
+    }
+
+    // Builds on the executor, which should run one task at a time if the builder is shared, instead
+    // of on a thread of its own. null is a thread of its own.
+    public TimelineLayout(LayoutBuilder builder, Callback callback, Executor executor) {
+        this.builder = builder;
+        this.callback = callback;
+        this.executor = executor;
+        requests = new Request[]{new Request(builder.tagIconPx()), new Request(builder.tagIconPx())};
+    }
+
+    // Asks for a frame of moments as seen through transform, covering [fromX, toX) at height y.
+    // The moments are copied only if they changed since the last request that was filled in the
+    // same buffer. Returns whether an earlier request was dropped for this one. UI thread only.
+    public boolean request(MomentStore moments, TimeTransform transform, float y, int colorBefore, float fromX, float toX) {
+        Request request;
+        boolean dropped;
+        synchronized (lock) {
+            dropped = pending != null;
+            pending = null;
+            request = requests[0] == working ? requests[1] : requests[0];
+        }
+
+        if (request.source != moments || request.sourceVersion != moments.getVersion()) {
+            request.moments.copyFrom(moments);
+            request.source = moments;
+            request.sourceVersion = moments.getVersion();
+        }
+        request.transform.set(transform);
+        request.y = y;
+        request.colorBefore = colorBefore;
+        request.fromX = fromX;
+        request.toX = toX;
+        request.serial = ++requestSerial;
+
+        synchronized (lock) {
+            if (stopped)
+                return false;
+            pending = request;
+            if (executor != null) {
+                if (!draining) {
+                    draining = true;
+                    executor.execute(drain);
+                }
+            }
+            else if (worker == null) {
+                worker = new Thread(this::work, "TimelineLayout");
+                worker.setDaemon(true);
+                worker.start();
+            }
+            lock.notifyAll();
+        }
+        return dropped;
+    }
+
+    // The newest finished frame, null if none was finished yet. It stays valid until the next call.
+    // UI thread only.
+    public Frame frame() {
+        synchronized (lock) {
+            if (readyIsNew) {
+                Frame swap = front;
+                front = ready;
+                ready = swap;
+                readyIsNew = false;
+            }
+        }
+        return front.serial == 0 ? null : front;
+    }
+
+    // Serial of the newest request, frames with this serial or a later one were built from it.
+    // UI thread only.
+    public int requestSerial() {
+        return requestSerial;
+    }
+
+    // Lets the worker finish what it's doing and end. Requests after this are ignored.
+    public void stop() {
+        synchronized (lock) {
+            stopped = true;
+            pending = null;
+            lock.notifyAll();
+        }
+    }
+
+    private void work() {
+        while (true) {
+            Request request;
+            Frame frame;
+            synchronized (lock) {
+                while (pending == null && !stopped) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+                if (stopped)
+                    return;
+                request = working = pending;
+                pending = null;
+                frame = back;
+            }
+            build(request, frame);
+        }
+    }
+
+    // On the executor, builds until nothing is pending anymore.
+    private void drain() {
+        while (true) {
+            Request request;
+            Frame frame;
+            synchronized (lock) {
+                if (pending == null || stopped) {
+                    draining = false;
+                    return;
+                }
+                request = working = pending;
+                pending = null;
+                frame = back;
+            }
+            build(request, frame);
+        }
+    }
+
+    private void build(Request request, Frame frame) {
+        long start = System.nanoTime();
+        builder.build(request.moments, request.summary, request.tags, request.transform, request.y,
+                request.colorBefore, request.fromX, request.toX, frame);
+        frame.serial = request.serial;
+        frame.layoutNanos = System.nanoTime() - start;
+
+        synchronized (lock) {
+            working = null;
+            back = ready;
+            ready = frame;
+            readyIsNew = true;
+        }
+        callback.onFrameReady();
+    }
+}
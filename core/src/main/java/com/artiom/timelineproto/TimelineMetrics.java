@@ -0,0 +1,182 @@
+package com.artiom.timelineproto;
+
+import java.io.PrintWriter;
+import java.util.Locale;
+
+// Counters and histograms for the timeline's hot paths, so we can see what it costs on real devices.
+// Everything is a no-op while disabled, so the calls can stay in the hot paths for good.
+public class TimelineMetrics {
+    // Power of two buckets, bucket i holds values in [2^(i-1), 2^i), bucket 0 holds 0.
+    public static class Histogram {
+        private final long[] buckets = new long[64];
+        private long count, sum, max;
+
+        public void record(long value) {
+            value = Math.max(0, value);
+            buckets[64 - Long.numberOfLeadingZeros(value)]++;
+            count++;
+            sum += value;
+            max = Math.max(max, value);
+        }
+
+        public long count() {
+            return count;
+        }
+
+        public long max() {
+            return max;
+        }
+
+        public double mean() {
+            return count == 0 ? 0 : sum * 1.0 / count;
+        }
+
+        // Upper bound of the bucket the percentile falls in, p is in [0, 1].
+        public long percentile(double p) {
+            long target = (long) Math.ceil(p * count);
+            long seen = 0;
+            for (int i = 0; i < buckets.length; i++) {
+                seen += buckets[i];
+                if (seen >= target && seen > 0)
+                    return i == 0 ? 0 : Math.min(max, (1L << i) - 1);
+            }
+            return max;
+        }
+
+        public void reset() {
+            for (int i = 0; i < buckets.length; i++)
+                buckets[i] = 0;
+            count = sum = max = 0;
+        }
+
+        void dump(PrintWriter writer, String name, String unit) {
+            writer.println(String.format(Locale.ENGLISH, "%s: n=%d mean=%.1f%s p50<=%d%s p90<=%d%s p99<=%d%s max=%d%s",
+                    name, count, mean(), unit, percentile(0.5), unit, percentile(0.9), unit, percentile(0.99), unit, max, unit));
+        }
+    }
+
+    private boolean enabled;
+
+    // In microseconds
+    public final Histogram drawTime = new Histogram();
+    public final Histogram touchToInvalidate = new Histogram();
+    // How long the layout thread took, for the frames that made it to the screen.
+    public final Histogram layoutTime = new Histogram();
+
+    private long momentsScanned, momentsDrawn;
+    private long framesRequested, framesDropped, framesReplayed;
+    private long feedDrains, feedEvents, feedChanges;
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    public void setEnabled(boolean enabled) {
+        this.enabled = enabled;
+    }
+
+    // Returns what frameEnd wants, 0 if disabled.
+    public long frameStart() {
+        return enabled ? System.nanoTime() : 0;
+    }
+
+    public void frameEnd(long frameStart) {
+        if (enabled)
+            drawTime.record((System.nanoTime() - frameStart) / 1000);
+    }
+
+    // Both are SystemClock.uptimeMillis() values, which is what MotionEvent.getEventTime() uses.
+    public void touchInvalidated(long eventTimeMillis, long nowMillis) {
+        if (enabled)
+            touchToInvalidate.record((nowMillis - eventTimeMillis) * 1000);
+    }
+
+    // Moments that were looked at to record something, and the ones that ended up as a circle.
+    public void countMoments(int scanned, int drawn) {
+        if (enabled) {
+            momentsScanned += scanned;
+            momentsDrawn += drawn;
+        }
+    }
+
+    public void frameLaidOut(long layoutNanos) {
+        if (enabled)
+            layoutTime.record(layoutNanos / 1000);
+    }
+
+    // Frames asked of the layout thread, the ones dropped because a newer ask came first, and the
+    // ones onDraw replayed.
+    public void countFrames(int requested, int dropped, int replayed) {
+        if (enabled) {
+            framesRequested += requested;
+            framesDropped += dropped;
+            framesReplayed += replayed;
+        }
+    }
+
+    // A drain of the feed, with the events it took off the queue and the moments they changed.
+    public void countFeed(int events, int changes) {
+        if (enabled) {
+            feedDrains++;
+            feedEvents += events;
+            feedChanges += changes;
+        }
+    }
+
+    public long momentsScanned() {
+        return momentsScanned;
+    }
+
+    public long momentsDrawn() {
+        return momentsDrawn;
+    }
+
+    public long framesRequested() {
+        return framesRequested;
+    }
+
+    public long framesDropped() {
+        return framesDropped;
+    }
+
+    public long framesReplayed() {
+        return framesReplayed;
+    }
+
+    public long feedDrains() {
+        return feedDrains;
+    }
+
+    public long feedEvents() {
+        return feedEvents;
+    }
+
+    public long feedChanges() {
+        return feedChanges;
+    }
+
+    public void reset() {
+        drawTime.reset();
+        touchToInvalidate.reset();
+        layoutTime.reset();
+        momentsScanned = momentsDrawn = 0;
+        framesRequested = framesDropped = framesReplayed = 0;
+        feedDrains = feedEvents = feedChanges = 0;
+    }
+
+    // The store keeps its own shift and passed counts, they are cheap enough to always be on.
+    public void dump(PrintWriter writer, String prefix, MomentStore store) {
+        writer.println(prefix + "Timeline metrics" + (enabled ? ":" : " (disabled):"));
+        prefix += "  ";
+        writer.print(prefix);
+        drawTime.dump(writer, "onDraw", "us");
+        writer.print(prefix);
+        touchToInvalidate.dump(writer, "touch->invalidate", "us");
+        writer.print(prefix);
+        layoutTime.dump(writer, "layout", "us");
+        writer.println(prefix + "moments: scanned=" + momentsScanned + " drawn=" + momentsDrawn + " stored=" + store.size());
+        writer.println(prefix + "frames: requested=" + framesRequested + " dropped=" + framesDropped + " replayed=" + framesReplayed);
+        writer.println(prefix + "feed: drains=" + feedDrains + " events=" + feedEvents + " changes=" + feedChanges);
+        writer.println(prefix + "store: shifts=" + store.getShiftCount() + " passed=" + store.getPassedCount());
+    }
+}
@@ -0,0 +1,54 @@
+package com.artiom.timelineproto;
+
+// The part of the time axis that is on screen. Immutable, changing it means making a new one
+// and handing it to a SharedViewport, which tells everyone who listens.
+public final class Viewport {
+    public interface Listener {
+        void onViewportChanged(Viewport viewport);
+    }
+
+    // In minutes, where we begin to see the current section on the screen.
+    public final float timeStart;
+    // In minutes, how big the time section on the screen is.
+    public final float timeScale;
+    public final float timeEnd;
+    // How much of the screen a minute takes, multiply by a width to get pixels per minute.
+    public final float minuteFraction;
+
+    public Viewport(float timeStart, float timeScale) {
+        this.timeStart = timeStart;
+        this.timeScale = timeScale;
+        this.timeEnd = timeStart + timeScale;
+        this.minuteFraction = 1 / timeScale;
+    }
+
+    public Viewport withTimeStart(float timeStart) {
+        return new Viewport(timeStart, timeScale);
+    }
+
+    public Viewport withTimeScale(float timeScale) {
+        return new Viewport(timeStart, timeScale);
+    }
+
+    public float pxPerMinute(float width) {
+        return width * minuteFraction;
+    }
+
+    // Where timeStart lands when each minute is pxPerMinute wide, x = t * pxPerMinute - offset.
+    public float offset(float pxPerMinute) {
+        return timeStart * pxPerMinute;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof Viewport))
+            return false;
+        Viewport other = (Viewport) o;
+        return timeStart == other.timeStart && timeScale == other.timeScale;
+    }
+
+    @Override
+    public int hashCode() {
+        return 31 * Float.floatToIntBits(timeStart) + Float.floatToIntBits(timeScale);
+    }
+}
@@ -0,0 +1,84 @@
+package com.artiom.timelineproto;
+
+// Gathers pans and zooms as they come in, and turns them into a single new Viewport once a frame.
+// Touch events come in faster than the display refreshes, and every viewport change lays the
+// timeline out again, so there's no point in doing it more often than frames are drawn.
+public class ViewportMotion {
+    private final float minScale;
+
+    private boolean pending;
+    private Viewport target;
+    private float panPx;
+    private float zoom = 1, focusX;
+    private boolean hitEdge;
+
+    // minScale is how far in it can zoom, in minutes.
+    public ViewportMotion(float minScale) {
+        this.minScale = minScale;
+    }
+
+    // The finger moved dx pixels, to the right is positive and brings earlier times in.
+    public void pan(float dxPx) {
+        panPx += dxPx;
+        pending = true;
+    }
+
+    // Pinched by factor, more than 1 zooms in. The time under focusX stays where it is.
+    public void zoom(float factor, float focusX) {
+        zoom *= factor;
+        this.focusX = focusX;
+        pending = true;
+    }
+
+    // Jumps to the given viewport, what was gathered before is dropped. What comes after is added on top.
+    public void set(Viewport viewport) {
+        target = viewport;
+        panPx = 0;
+        zoom = 1;
+        pending = true;
+    }
+
+    // Drops everything gathered since the last apply.
+    public void cancel() {
+        pending = false;
+        target = null;
+        panPx = 0;
+        zoom = 1;
+    }
+
+    public boolean isPending() {
+        return pending;
+    }
+
+    // Whether the last apply had to stop a pan at either end.
+    public boolean hitEdge() {
+        return hitEdge;
+    }
+
+    // Everything gathered since the last call applied to current, which transform was made from.
+    // The result stays within [0, span] and zooms no further in than minScale.
+    public Viewport apply(Viewport current, TimeTransform transform, float span) {
+        return apply(current, transform, span, span);
+    }
+
+    // Same, but zooms no further out than maxScale either, if that's less than the span.
+    public Viewport apply(Viewport current, TimeTransform transform, float span, float maxScale) {
+        Viewport base = target != null ? target : current;
+        float width = transform.right() - transform.left();
+        maxScale = Math.max(minScale, Math.min(span, maxScale));
+
+        float scale = Math.min(maxScale, Math.max(minScale, base.timeScale / zoom));
+        float focusOffset = focusX - transform.left();
+        float focusT = base.timeStart + focusOffset * base.timeScale / width;
+        float start = focusT - focusOffset * scale / width - panPx * scale / width;
+
+        float clamped = Math.min(Math.max(0, span - scale), Math.max(0, start));
+        hitEdge = panPx != 0 && clamped != start;
+
+        pending = false;
+        target = null;
+        panPx = 0;
+        zoom = 1;
+        return new Viewport(clamped, scale);
+    }
+}
@@ -0,0 +1,39 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class DrawListTest {
+    @Test
+    public void groupsByColor() {
+        DrawList list = new DrawList();
+        list.addLine(1, 0, 0, 10, 0);
+        list.addLine(2, 10, 0, 20, 0);
+        list.addLine(1, 20, 0, 30, 0);
+        list.addCircle(2, 10, 0);
+
+        assertEquals(2, list.groupCount());
+        assertEquals(1, list.groupColor(0));
+        assertEquals(8, list.lineFloats(0));
+        assertEquals(20, list.lines(0)[4], 0);
+        assertEquals(4, list.lineFloats(1));
+        assertEquals(0, list.circleFloats(0));
+        assertEquals(2, list.circleFloats(1));
+    }
+
+    @Test
+    public void clear_reusesBuffers() {
+        DrawList list = new DrawList();
+        for (int i = 0; i < 1000; i++)
+            list.addLine(i % 3, i, 0, i + 1, 0);
+        float[] buffer = list.lines(0);
+
+        list.clear();
+        assertEquals(0, list.groupCount());
+
+        for (int i = 0; i < 1000; i++)
+            list.addLine(i % 3, i, 0, i + 1, 0);
+        assertSame(buffer, list.lines(0));
+    }
+}
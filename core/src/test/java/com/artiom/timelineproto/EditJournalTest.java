@@ -0,0 +1,220 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class EditJournalTest {
+    private static void assertSameMoments(MomentStore expected, MomentStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTime(i), actual.getTime(i));
+            assertEquals(expected.getColor(i), actual.getColor(i));
+            assertEquals(expected.getTags(i), actual.getTags(i));
+        }
+    }
+
+    private static MomentStore copy(MomentStore store) {
+        MomentStore copy = new MomentStore();
+        copy.copyFrom(store);
+        return copy;
+    }
+
+    // Random edits to the store, each recorded like the Timeline would. Some do nothing and aren't
+    // recorded, like a drag that ends where it began.
+    private static void edit(MomentStore store, EditJournal journal, Random random) {
+        int i = store.size() > 0 ? random.nextInt(store.size()) : -1;
+        int op = i == -1 ? 0 : random.nextInt(5);
+        if (op == 0) {
+            int t = random.nextInt(10000), color = random.nextInt(4) - 2;
+            long tags = MomentStore.withTag(0, 0, random.nextInt(10));
+            store.insert(t, color, tags);
+            journal.added(t, color, tags);
+            return;
+        }
+
+        int t = store.getTime(i), color = store.getColor(i);
+        long tags = store.getTags(i);
+        switch (op) {
+            case 1:
+                store.remove(i);
+                journal.removed(t, color, tags);
+                break;
+            case 2:
+                int toT = random.nextInt(10000);
+                store.move(i, toT);
+                journal.moved(t, color, tags, toT);
+                break;
+            case 3:
+                int newColor = random.nextInt(4) - 2;
+                store.setColor(i, newColor);
+                journal.recolored(t, color, tags, newColor);
+                break;
+            case 4:
+                long newTags = MomentStore.withTag(tags, 1, random.nextInt(10));
+                store.setTags(i, newTags);
+                journal.retagged(t, color, tags, newTags);
+                break;
+        }
+    }
+
+    @Test
+    public void undoThenRedo_goesThroughEveryState() {
+        Random random = new Random(11);
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal();
+        MomentStore[] states = new MomentStore[301];
+        states[0] = copy(store);
+        for (int k = 1; k < states.length; k++) {
+            int count = journal.undoCount();
+            while (journal.undoCount() == count)
+                edit(store, journal, random);
+            states[k] = copy(store);
+        }
+
+        for (int k = states.length - 1; k > 0; k--) {
+            assertTrue(journal.undo(store));
+            assertSameMoments(states[k - 1], store);
+        }
+        assertFalse(journal.canUndo());
+        for (int k = 1; k < states.length; k++) {
+            assertTrue(journal.redo(store));
+            assertSameMoments(states[k], store);
+        }
+        assertFalse(journal.canRedo());
+    }
+
+    @Test
+    public void replay_rebuildsTheSessionInAFreshStore() {
+        Random random = new Random(12);
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal(10000);
+        for (int k = 0; k < 5000; k++)
+            edit(store, journal, random);
+        journal.undo(store);
+        journal.undo(store);
+
+        MomentStore fresh = new MomentStore();
+        journal.replay(fresh);
+        assertSameMoments(store, fresh);
+    }
+
+    @Test
+    public void fullRing_dropsTheOldestEdits() {
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal(4);
+        for (int t = 0; t < 10; t++) {
+            store.insert(t, 0, 1);
+            journal.added(t, 0, 1);
+        }
+
+        assertEquals(4, journal.undoCount());
+        assertEquals(6, journal.droppedCount());
+        while (journal.undo(store))
+            ;
+        assertEquals(6, store.size());
+        assertEquals(5, store.getTime(store.size() - 1));
+    }
+
+    @Test
+    public void editAfterUndo_dropsRedo() {
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal();
+        store.insert(10, 0, 1);
+        journal.added(10, 0, 1);
+        store.move(0, 20);
+        journal.moved(10, 0, 1, 20);
+        journal.undo(store);
+        assertEquals(10, store.getTime(0));
+
+        store.setColor(0, 5);
+        journal.recolored(10, 0, 1, 5);
+        assertFalse(journal.canRedo());
+        assertEquals(2, journal.undoCount());
+    }
+
+    @Test
+    public void maxTime_keepsTheOp() {
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal();
+        store.insert(MomentStore.MAX_TIME, 3, 1);
+        journal.added(MomentStore.MAX_TIME, 3, 1);
+        store.setColor(0, 4);
+        journal.recolored(MomentStore.MAX_TIME, 3, 1, 4);
+
+        assertTrue(journal.undo(store));
+        assertEquals(3, store.getColor(0));
+        assertTrue(journal.undo(store));
+        assertEquals(0, store.size());
+
+        journal.redo(store);
+        MomentStore fresh = new MomentStore();
+        journal.replay(fresh);
+        assertEquals(1, fresh.size());
+        assertEquals(MomentStore.MAX_TIME, fresh.getTime(0));
+        assertEquals(3, fresh.getColor(0));
+    }
+
+    @Test
+    public void undo_reachesEvictedDays() throws IOException {
+        int day = MomentChunks.CHUNK_MINUTES;
+        File dir = Files.createTempDirectory("moments").toFile();
+        MomentFile file = new MomentFile(dir, "test", Runnable::run);
+        file.open();
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, file, 3);
+        chunks.show(day / 2, day / 2);
+        store.setListener(file);
+
+        EditJournal journal = new EditJournal();
+        store.insert(100, 1, 0);
+        journal.added(100, 1, 0);
+        store.move(0, 200);
+        journal.moved(100, 1, 0, 200);
+
+        // Scrolled far enough for the day to be evicted.
+        chunks.show(100 * day, 100 * day);
+        assertEquals(0, store.size());
+
+        MomentStore saved = new MomentStore();
+        assertTrue(journal.undo(store, chunks));
+        chunks.trim();
+        assertEquals(0, store.size());
+        file.read(0, day, saved);
+        assertEquals(1, saved.size());
+        assertEquals(100, saved.getTime(0));
+
+        assertTrue(journal.undo(store, chunks));
+        chunks.trim();
+        saved.clear();
+        file.read(0, day, saved);
+        assertEquals(0, saved.size());
+
+        assertTrue(journal.redo(store, chunks));
+        assertTrue(journal.redo(store, chunks));
+        chunks.trim();
+        saved.clear();
+        file.read(0, day, saved);
+        assertEquals(1, saved.size());
+        assertEquals(200, saved.getTime(0));
+    }
+
+    @Test
+    public void undo_leavesMomentsChangedElsewhere() {
+        MomentStore store = new MomentStore();
+        EditJournal journal = new EditJournal();
+        store.insert(100, 1, 0);
+        journal.added(100, 1, 0);
+        // Moved by a feed, say, which the journal doesn't hear about.
+        store.move(0, 300);
+
+        assertFalse(journal.undo(store));
+        assertEquals(1, store.size());
+        assertEquals(300, store.getTime(0));
+    }
+}
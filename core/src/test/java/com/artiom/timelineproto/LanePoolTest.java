@@ -0,0 +1,70 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.util.IdentityHashMap;
+
+import static org.junit.Assert.*;
+
+public class LanePoolTest {
+    @Test
+    public void bind_keepsStatesOfLanesThatStay() {
+        LanePool<Object> pool = new LanePool<>(Object::new);
+        pool.bind(0, 9);
+        Object five = pool.get(5);
+
+        pool.bind(3, 12);
+        assertSame(five, pool.get(5));
+        assertNull(pool.get(2));
+        assertNotNull(pool.get(12));
+        // The three that scrolled out went to the three that scrolled in.
+        assertEquals(10, pool.createdCount());
+    }
+
+    @Test
+    public void scrollingThroughManyLanes_onlyMakesAScreenfulOfStates() {
+        LanePool<Object> pool = new LanePool<>(Object::new);
+        for (int top = 0; top < 10_000; top += 7)
+            pool.bind(top, top + 19);
+
+        assertEquals(20, pool.createdCount());
+        IdentityHashMap<Object, Boolean> seen = new IdentityHashMap<>();
+        for (int lane = pool.boundFrom(); lane <= pool.boundTo(); lane++)
+            assertNull(seen.put(pool.get(lane), true));
+    }
+
+    @Test
+    public void bind_emptyUnbindsEverything() {
+        LanePool<Object> pool = new LanePool<>(Object::new);
+        pool.bind(0, 4);
+        pool.bind(0, -1);
+        assertNull(pool.get(0));
+
+        pool.bind(100, 104);
+        assertEquals(5, pool.createdCount());
+    }
+
+    private static class Held {
+        int lane = -1;
+    }
+
+    @Test
+    public void unbind_recyclesWhatLeaves() {
+        LanePool<Held> pool = new LanePool<>(Held::new, state -> state.lane = -1);
+        pool.bind(0, 4);
+        for (int lane = 0; lane <= 4; lane++)
+            pool.get(lane).lane = lane;
+
+        // Like a new adapter, every state comes back forgetting its lane, even to the same index.
+        pool.bind(0, -1);
+        pool.bind(0, 4);
+        for (int lane = 0; lane <= 4; lane++)
+            assertEquals(-1, pool.get(lane).lane);
+
+        pool.get(4).lane = 4;
+        pool.bind(0, 3);
+        assertEquals(5, pool.createdCount());
+        pool.bind(0, 4);
+        assertEquals(-1, pool.get(4).lane);
+    }
+}
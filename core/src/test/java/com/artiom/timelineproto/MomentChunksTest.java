@@ -0,0 +1,161 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MomentChunksTest {
+    private static final int DAY = MomentChunks.CHUNK_MINUTES;
+
+    // Everything in memory, counts what was read.
+    private static class StoreSource implements MomentChunks.Source {
+        final MomentStore all = new MomentStore();
+        int reads;
+
+        @Override
+        public void read(int fromT, int toT, MomentStore into) {
+            reads++;
+            for (int i = all.lowerBound(fromT); i < all.size() && all.getTime(i) < toT; i++)
+                into.insert(all.getTime(i), all.getColor(i), all.getTags(i));
+        }
+
+        @Override
+        public int firstTime() {
+            return all.size() > 0 ? all.getTime(0) : Integer.MAX_VALUE;
+        }
+
+        @Override
+        public int lastTime() {
+            return all.size() > 0 ? all.getTime(all.size() - 1) : Integer.MIN_VALUE;
+        }
+
+        @Override
+        public void readLastBefore(int t, MomentStore into) {
+            reads++;
+            int i = all.lowerBound(t) - 1;
+            if (i >= 0)
+                into.insert(all.getTime(i), all.getColor(i), all.getTags(i));
+        }
+    }
+
+    // A moment at noon of every day, colored by its day.
+    private static StoreSource days(int count) {
+        StoreSource source = new StoreSource();
+        for (int day = 0; day < count; day++)
+            source.all.insert(day * DAY + DAY / 2, day, 0);
+        return source;
+    }
+
+    @Test
+    public void show_loadsViewportAndMargins() {
+        StoreSource source = days(100);
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, source, 10);
+
+        assertTrue(chunks.show(50 * DAY + 10, 50 * DAY + 20));
+        assertEquals(49, chunks.residentFrom());
+        assertEquals(51, chunks.residentTo());
+        assertEquals(3, store.size());
+        assertEquals(49, store.getColor(0));
+        assertTrue(chunks.hasColorBefore());
+        assertEquals(48, chunks.colorBefore());
+
+        // Still inside, nothing to do.
+        assertFalse(chunks.show(50 * DAY + 100, 50 * DAY + 200));
+    }
+
+    @Test
+    public void show_evictsFurthestChunks() {
+        StoreSource source = days(100);
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, source, 5);
+
+        // Panning right a day at a time.
+        for (int day = 10; day < 30; day++) {
+            chunks.show(day * DAY, day * DAY + 60);
+            assertTrue(chunks.residentTo() - chunks.residentFrom() + 1 <= 5);
+            assertTrue(chunks.residentFrom() <= day - 1);
+            assertTrue(chunks.residentTo() >= day + 1);
+            assertEquals(chunks.residentTo() - chunks.residentFrom() + 1, store.size());
+            for (int i = 1; i < store.size(); i++)
+                assertEquals(store.getColor(i - 1) + 1, store.getColor(i));
+        }
+        // Days behind go first, the ones ahead stay.
+        assertEquals(26, chunks.residentFrom());
+        assertEquals(30, chunks.residentTo());
+
+        // Jumping far away drops everything.
+        chunks.show(80 * DAY, 80 * DAY + 60);
+        assertEquals(79, chunks.residentFrom());
+        assertEquals(79, store.getColor(0));
+
+        // A viewport wider than the limit still gets all it needs.
+        chunks.show(0, 20 * DAY);
+        assertEquals(22, store.size());
+    }
+
+    @Test
+    public void colorBefore_skipsEmptyDays() {
+        StoreSource source = new StoreSource();
+        source.all.insert(DAY + 5, 7, 0);
+        source.all.insert(40 * DAY, 8, 0);
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, source, 5);
+
+        chunks.show(30 * DAY, 30 * DAY + 60);
+        assertEquals(0, store.size());
+        assertTrue(chunks.hasColorBefore());
+        assertEquals(7, chunks.colorBefore());
+        // The shown days and one question for the color, not a read per empty day.
+        assertEquals(2, source.reads);
+
+        chunks.show(0, 60);
+        assertFalse(chunks.hasColorBefore());
+    }
+
+    @Test
+    public void loading_isKeptFromTheListener() {
+        StoreSource source = days(10);
+        MomentStore store = new MomentStore();
+        final int[] events = new int[1];
+        store.setListener(new MomentStore.Listener() {
+            @Override
+            public void onMomentAdded(int t, int color, long packedTags) {
+                events[0]++;
+            }
+
+            @Override
+            public void onMomentRemoved(int t, int color, long packedTags) {
+                events[0]++;
+            }
+
+            @Override
+            public void onMomentsCleared() {
+                events[0]++;
+            }
+        });
+        MomentChunks chunks = new MomentChunks(store, source, 3);
+
+        chunks.show(2 * DAY, 2 * DAY + 1);
+        chunks.show(6 * DAY, 6 * DAY + 1);
+        assertEquals(0, events[0]);
+
+        // Added far away: saved through the listener, but not kept in memory.
+        store.insert(9 * DAY, 0, 0);
+        chunks.trim();
+        assertEquals(1, events[0]);
+        assertEquals(3, store.size());
+    }
+
+    @Test
+    public void maxTimeScale_fitsWhereverTheViewportIs() {
+        StoreSource source = days(100);
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, source, 10);
+        float scale = chunks.maxTimeScale();
+        for (float start = 0; start < 80 * DAY; start += DAY / 3.0f) {
+            chunks.show(start, start + scale);
+            assertTrue(chunks.residentTo() - chunks.residentFrom() + 1 <= 10);
+        }
+    }
+}
@@ -0,0 +1,185 @@
+package com.artiom.timelineproto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+
+import static org.junit.Assert.*;
+
+public class MomentDragTest {
+    private static final int WIDTH = 1080, PADDING = 90;
+    private static final int EVENTS = 100_000;
+
+    private MomentStore store;
+    private TimeTransform transform;
+    private MomentDrag drag;
+
+    @Before
+    public void setUp() {
+        store = new MomentStore();
+        for (int i = 0; i < 1000; i++)
+            store.insert(i, i, 0);
+
+        transform = new TimeTransform();
+        transform.set(WIDTH, PADDING, new Viewport(0, 1000));
+        drag = new MomentDrag(store, transform);
+    }
+
+    private static long allocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // Drags back and forth over the whole timeline.
+    private void sweep(int events) {
+        float step = (WIDTH - 2 * PADDING) / 250.0f;
+        float x = PADDING;
+        for (int i = 0; i < events; i++) {
+            x += step;
+            if (x > WIDTH - PADDING || x < PADDING)
+                step = -step;
+            drag.move(x);
+        }
+    }
+
+    @Test
+    public void move_doesNotAllocate() {
+        drag.begin(500);
+        // Warm up so the JIT is done with it.
+        sweep(EVENTS);
+
+        long overhead = allocatedBytes();
+        overhead = allocatedBytes() - overhead;
+
+        long before = allocatedBytes();
+        sweep(EVENTS);
+        long allocated = allocatedBytes() - before - overhead;
+
+        assertTrue("Allocated " + allocated + " bytes over " + EVENTS + " move events", allocated < EVENTS);
+        drag.end();
+    }
+
+    @Test
+    public void move_followsTouch() {
+        drag.begin(10);
+        // Snapped to the nearest minute.
+        float x = drag.move(transform.toX(600.4f));
+        assertEquals(transform.toX(600), x, 0.001f);
+
+        // Lands where it belongs in one event, however far that is.
+        int index = drag.index();
+        assertEquals(600, store.getTime(index));
+        assertEquals(600, index);
+        drag.end();
+        for (int i = 1; i < store.size(); i++)
+            assertTrue(store.getTime(i - 1) <= store.getTime(i));
+    }
+
+    @Test
+    public void move_keepsStoreSortedEveryEvent() {
+        // Somewhere to land that isn't on top of another moment.
+        store.remove(500);
+        int[] events = new int[1];
+        store.setListener(new MomentStore.Listener() {
+            @Override
+            public void onMomentAdded(int t, int color, long packedTags) {
+                events[0]++;
+            }
+            @Override
+            public void onMomentRemoved(int t, int color, long packedTags) {
+                events[0]++;
+            }
+            @Override
+            public void onMomentsCleared() {
+                events[0]++;
+            }
+        });
+
+        drag.begin(899);
+        float[] xs = {transform.toX(3.4f), transform.toX(999.4f), transform.toX(400.4f), transform.toX(500.4f)};
+        for (float x : xs) {
+            drag.move(x);
+            for (int i = 1; i < store.size(); i++)
+                assertTrue(store.getTime(i - 1) <= store.getTime(i));
+        }
+        assertEquals(0, events[0]);
+        assertTrue(drag.end());
+        // One remove and one add, however many moments it passed.
+        assertEquals(2, events[0]);
+        assertEquals(500, store.getTime(500));
+        assertEquals(900, store.getColor(500));
+    }
+
+    @Test
+    public void move_isCappedToPadding() {
+        drag.begin(10);
+        assertEquals(PADDING, drag.move(-50), 0);
+        assertEquals(WIDTH - PADDING, drag.move(WIDTH + 50), 0);
+        drag.end();
+    }
+
+    @Test
+    public void move_snapsAndReportsOverlap() {
+        // Every 10th minute is free, and a minute is less than a pixel.
+        store.clear();
+        for (int i = 0; i < 1000; i++)
+            if (i % 10 != 0)
+                store.insert(i, i, 0);
+        drag.begin(0);
+        drag.setSnapMinutes(10);
+
+        // Rounded, not cut down to the multiple before it.
+        assertEquals(transform.toX(610), drag.move(transform.toX(607.5f)), 0.001f);
+        assertEquals(610, store.getTime(drag.index()));
+        assertFalse(drag.isOverlapping());
+        assertEquals(transform.toX(600), drag.move(transform.toX(604.5f)), 0.001f);
+        assertEquals(600, store.getTime(drag.index()));
+
+        // The moments at 599 and 601 are less than 2 pixels away.
+        drag.setOverlapPx(2);
+        drag.move(transform.toX(604));
+        assertTrue(drag.isOverlapping());
+        assertFalse(drag.end());
+        assertEquals(1, store.getTime(0));
+        assertEquals(900, store.size());
+    }
+
+    @Test
+    public void end_revertsOverlap() {
+        drag.begin(10);
+        // Right on top of the moment at 11
+        drag.move(transform.toX(11.2f));
+        assertFalse(drag.end());
+        assertEquals(10, store.getTime(10));
+        assertEquals(10, store.getColor(10));
+    }
+
+    @Test
+    public void cancel_putsMomentBackSilently() {
+        int[] reported = new int[1];
+        store.setListener(new MomentStore.Listener() {
+            @Override
+            public void onMomentAdded(int t, int color, long packedTags) {
+                reported[0]++;
+            }
+
+            @Override
+            public void onMomentRemoved(int t, int color, long packedTags) {
+                reported[0]++;
+            }
+
+            @Override
+            public void onMomentsCleared() {
+            }
+        });
+
+        drag.begin(10);
+        drag.move(transform.toX(500.5f));
+        drag.cancel();
+        assertFalse(drag.isDragging());
+        assertEquals(10, store.getTime(10));
+        assertEquals(10, store.getColor(10));
+        assertEquals(0, reported[0]);
+    }
+}
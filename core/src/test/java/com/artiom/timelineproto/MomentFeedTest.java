@@ -0,0 +1,141 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class MomentFeedTest {
+    @Test
+    public void push_schedulesOnceUntilDrained() {
+        AtomicInteger scheduled = new AtomicInteger();
+        MomentFeed feed = new MomentFeed(scheduled::incrementAndGet);
+        for (int i = 0; i < 100; i++)
+            feed.add(i, i * 10, 0, 1);
+        assertEquals(1, scheduled.get());
+
+        feed.drain(new MomentStore());
+        feed.move(3, 5);
+        assertEquals(2, scheduled.get());
+    }
+
+    @Test
+    public void drain_coalescesEventsOfAMoment() {
+        MomentStore store = new MomentStore();
+        MomentFeed feed = new MomentFeed(() -> {});
+        feed.add(1, 100, 0xff0000, 1);
+        feed.add(2, 200, 0x00ff00, 1);
+        feed.drain(store);
+        int version = store.getVersion();
+
+        for (int t = 101; t <= 150; t++)
+            feed.move(1, t);
+        feed.recolor(1, 0x0000ff);
+        feed.add(3, 300, 0, 1);
+        feed.remove(3);
+        assertEquals(1, feed.drain(store));
+
+        assertEquals(2, store.size());
+        assertEquals(150, store.getTime(0));
+        assertEquals(0x0000ff, store.getColor(0));
+        assertEquals(200, store.getTime(1));
+        // A move and a recolor, not one change per event.
+        assertEquals(version + 2, store.getVersion());
+        assertEquals(55, feed.eventsDrained());
+    }
+
+    @Test
+    public void drain_keepsStoreSorted() {
+        MomentStore store = new MomentStore();
+        MomentFeed feed = new MomentFeed(() -> {});
+        for (int i = 0; i < 50; i++)
+            feed.add(i, (i * 37) % 500, i, 1);
+        feed.drain(store);
+        for (int i = 0; i < 50; i += 3)
+            feed.move(i, 499 - i);
+        for (int i = 1; i < 50; i += 5)
+            feed.remove(i);
+        feed.drain(store);
+
+        assertEquals(40, store.size());
+        for (int i = 1; i < store.size(); i++)
+            assertTrue(store.getTime(i - 1) <= store.getTime(i));
+    }
+
+    @Test
+    public void drain_evictedMomentStillReachesListener() throws IOException {
+        int day = MomentChunks.CHUNK_MINUTES;
+        MomentFile file = new MomentFile(Files.createTempDirectory("moments").toFile(), "test", Runnable::run);
+        file.open();
+        MomentStore store = new MomentStore();
+        MomentChunks chunks = new MomentChunks(store, file, 3);
+        chunks.show(day / 2, day / 2);
+        store.setListener(file);
+
+        MomentFeed feed = new MomentFeed(() -> {});
+        feed.add(7, 100, 0, 1);
+        feed.add(8, 200, 0, 1);
+        feed.drain(store, chunks);
+        chunks.show(100 * day, 100 * day);
+        assertEquals(0, store.size());
+
+        feed.remove(7);
+        feed.move(8, 100 * day + 5);
+        assertEquals(2, feed.drain(store, chunks));
+        chunks.trim();
+        assertEquals(1, store.size());
+        assertEquals(100 * day + 5, store.getTime(0));
+        MomentStore saved = new MomentStore();
+        file.read(0, day, saved);
+        assertEquals(0, saved.size());
+    }
+
+    @Test
+    public void drain_leavesMomentsTheUserChanged() {
+        MomentStore store = new MomentStore();
+        MomentFeed feed = new MomentFeed(() -> {});
+        feed.add(1, 100, 0, 1);
+        feed.drain(store);
+
+        // The user dragged it, the feed's version of it is gone.
+        store.move(0, 200);
+        feed.move(1, 150);
+        assertEquals(0, feed.drain(store));
+        assertEquals(1, store.size());
+        assertEquals(200, store.getTime(0));
+
+        // Forgotten, only adding it again brings it back.
+        feed.move(1, 160);
+        feed.drain(store);
+        assertEquals(1, store.size());
+        feed.add(1, 170, 0, 1);
+        feed.drain(store);
+        assertEquals(2, store.size());
+    }
+
+    @Test
+    public void push_fromManyThreads_losesNothing() throws InterruptedException {
+        MomentStore store = new MomentStore();
+        MomentFeed feed = new MomentFeed(() -> {});
+        Thread[] threads = new Thread[4];
+        for (int k = 0; k < threads.length; k++) {
+            int base = k * 1000;
+            threads[k] = new Thread(() -> {
+                for (int i = 0; i < 1000; i++)
+                    feed.add(base + i, base + i, 0, 1);
+            });
+            threads[k].start();
+        }
+        // Draining while they push, like frames would.
+        while (threads[0].isAlive() || threads[1].isAlive() || threads[2].isAlive() || threads[3].isAlive())
+            feed.drain(store);
+        for (Thread thread : threads)
+            thread.join();
+        feed.drain(store);
+
+        assertEquals(4000, store.size());
+    }
+}
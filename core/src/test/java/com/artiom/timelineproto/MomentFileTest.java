@@ -0,0 +1,269 @@
+package com.artiom.timelineproto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MomentFileTest {
+    // Runs the writes right away, so the files are there when the test looks.
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private File dir;
+
+    @Before
+    public void setUp() throws IOException {
+        dir = Files.createTempDirectory("moments").toFile();
+    }
+
+    // Like the timeline with every day loaded.
+    private static void open(MomentFile file, MomentStore store) throws IOException {
+        file.open();
+        file.readAll(store);
+        store.setListener(file);
+    }
+
+    private MomentStore reopen() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        file.open();
+        file.readAll(store);
+        return store;
+    }
+
+    private static void assertSameMoments(MomentStore expected, MomentStore actual) {
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.getTime(i), actual.getTime(i));
+            assertEquals(expected.getColor(i), actual.getColor(i));
+            assertEquals(expected.getTags(i), actual.getTags(i));
+        }
+    }
+
+    @Test
+    public void open_emptyDirectory() throws IOException {
+        assertEquals(0, reopen().size());
+    }
+
+    @Test
+    public void journal_replaysEdits() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+
+        for (int i = 0; i < 20; i++)
+            store.insert(i * 10, i, MomentStore.withTag(0, 0, i % 5));
+        store.remove(3);
+        store.move(5, 155);
+        store.setColor(0, 99);
+        file.flush();
+
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void compact_writesSnapshotAndDropsJournal() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+
+        for (int i = 0; i < 100; i++)
+            store.insert(i, i, 0);
+        file.compact();
+        assertTrue(file.snapshotFile().exists());
+        assertFalse(file.journalFile(0).exists());
+        assertEquals(0, file.journalBytes());
+
+        // Edits after the snapshot go to the next journal.
+        store.remove(50);
+        store.insert(500, 1, 0);
+        file.flush();
+        assertTrue(file.journalFile(1).exists());
+
+        assertEquals(16 + 100 * MomentFile.MOMENT_BYTES, file.snapshotFile().length());
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void drag_isJournaledAsOneMove() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+        for (int i = 0; i < 10; i++)
+            store.insert(i * 10, i, 0);
+        file.compact();
+
+        TimeTransform transform = new TimeTransform();
+        transform.set(110, 5, new Viewport(0, 100));
+        MomentDrag drag = new MomentDrag(store, transform);
+        drag.begin(2);
+        for (float x = 25; x < 80; x += 3)
+            drag.move(x);
+        assertTrue(drag.end());
+
+        // A remove and an add, not a record per swap.
+        assertEquals(2 * MomentFile.JOURNAL_RECORD_BYTES, file.journalBytes());
+        file.flush();
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void read_rangeSeesJournal() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+        for (int i = 0; i < 10; i++)
+            store.insert(i * 100, i, 0);
+        file.compact();
+        store.remove(3);
+        store.insert(350, 42, 0);
+
+        MomentStore range = new MomentStore();
+        file.read(200, 500, range);
+        assertEquals(3, range.size());
+        assertEquals(200, range.getTime(0));
+        assertEquals(350, range.getTime(1));
+        assertEquals(42, range.getColor(1));
+        assertEquals(400, range.getTime(2));
+
+        assertEquals(0, file.firstTime());
+        assertEquals(900, file.lastTime());
+    }
+
+    @Test
+    public void compact_mergesLargeSnapshotInSteps() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+
+        MomentBatch batch = new MomentBatch();
+        for (int i = 0; i < 150_000; i++)
+            batch.add(i * 3, i, i);
+        store.addAll(batch);
+        file.compact();
+
+        for (int i = 0; i < 1000; i++)
+            store.remove(i * 100);
+        for (int i = 0; i < 1000; i++)
+            store.insert(i * 400 + 1, -i, 0);
+        store.clear();
+        store.insert(5, 5, 5);
+        file.compact();
+        assertSameMoments(store, reopen());
+
+        store.addAll(batch);
+        file.compact();
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void journal_ignoresTornRecord() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+        store.insert(1, 1, 0);
+        store.insert(2, 2, 0);
+        file.flush();
+
+        // Like dying halfway through writing a third record.
+        try (RandomAccessFile journal = new RandomAccessFile(file.journalFile(0), "rw")) {
+            journal.seek(journal.length());
+            journal.write(new byte[]{1, 0, 0, 0, 3});
+        }
+
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void interruptedCompaction_keepsBothJournals() throws IOException {
+        final ArrayList<Runnable> queued = new ArrayList<>();
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                queued.add(command);
+            }
+        });
+        open(file, store);
+
+        store.insert(1, 1, 0);
+        store.insert(2, 2, 0);
+        file.compact();
+        store.insert(3, 3, 0);
+        file.flush();
+
+        // The journal writes, but not the snapshot in between, like the app died while writing it.
+        assertEquals(3, queued.size());
+        queued.get(0).run();
+        queued.get(2).run();
+        assertFalse(file.snapshotFile().exists());
+        assertTrue(file.journalFile(0).exists());
+        assertTrue(file.journalFile(1).exists());
+
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void record_writesAndCompactsWithoutFlush() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+
+        int perWrite = MomentFile.WRITE_JOURNAL_BYTES / MomentFile.JOURNAL_RECORD_BYTES;
+        for (int i = 0; i < perWrite * 2; i++)
+            store.insert(i, 0, 1);
+        // Everything up to the last full write made it to disk, like after a crash.
+        assertTrue(reopen().size() >= perWrite);
+
+        int perCompaction = MomentFile.COMPACT_JOURNAL_BYTES / MomentFile.JOURNAL_RECORD_BYTES;
+        for (int i = 0; i < perCompaction; i++)
+            store.insert(i, 1, 1);
+        assertTrue(file.snapshotFile().exists());
+        assertTrue(file.journalBytes() < MomentFile.COMPACT_JOURNAL_BYTES);
+
+        file.flush();
+        assertSameMoments(store, reopen());
+    }
+
+    @Test
+    public void readLastBefore_seesJournalAndLooksPastRemoves() throws IOException {
+        MomentStore store = new MomentStore();
+        MomentFile file = new MomentFile(dir, "test", DIRECT);
+        open(file, store);
+        store.insert(100, 1, 0);
+        store.insert(50 * MomentChunks.CHUNK_MINUTES, 2, 0);
+        file.compact();
+        store.insert(60 * MomentChunks.CHUNK_MINUTES, 3, 0);
+
+        MomentStore last = new MomentStore();
+        file.readLastBefore(70 * MomentChunks.CHUNK_MINUTES, last);
+        assertEquals(1, last.size());
+        assertEquals(3, last.getColor(0));
+
+        // Both later ones removed, it has to go back 60 days.
+        store.remove(2);
+        store.remove(1);
+        last.clear();
+        file.readLastBefore(70 * MomentChunks.CHUNK_MINUTES, last);
+        assertEquals(1, last.size());
+        assertEquals(100, last.getTime(0));
+
+        last.clear();
+        file.readLastBefore(100, last);
+        assertEquals(0, last.size());
+        assertEquals(100, file.firstTime());
+        assertEquals(60 * MomentChunks.CHUNK_MINUTES, file.lastTime());
+    }
+}
@@ -0,0 +1,52 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MomentQueriesTest {
+    @Test
+    public void firstFromLastUntil_roundTowardsTheRange() {
+        MomentStore store = new MomentStore();
+        for (int t : new int[]{10, 20, 20, 30})
+            store.insert(t, 0, 0);
+
+        assertEquals(1, MomentQueries.firstFrom(store, 10.5f));
+        assertEquals(0, MomentQueries.firstFrom(store, 10));
+        assertEquals(2, MomentQueries.lastUntil(store, 29.9f));
+        assertEquals(-1, MomentQueries.lastUntil(store, 9.9f));
+        assertEquals(4, MomentQueries.firstFrom(store, 31));
+    }
+
+    @Test
+    public void within_excludesBothEnds() {
+        MomentStore store = new MomentStore();
+        for (int t : new int[]{10, 20, 21, 25, 30})
+            store.insert(t, 0, 0);
+
+        assertEquals(1, MomentQueries.firstWithin(store, 20, 5));
+        assertEquals(3, MomentQueries.lastWithin(store, 20, 5.5f));
+        assertEquals(2, MomentQueries.lastWithin(store, 20, 5));
+        assertTrue(MomentQueries.firstWithin(store, 15, 4) > MomentQueries.lastWithin(store, 15, 4));
+
+        assertFalse(MomentQueries.overlaps(store, 1, 1));
+        assertTrue(MomentQueries.overlaps(store, 1, 1.5f));
+        assertFalse(MomentQueries.overlaps(store, 0, 10));
+    }
+
+    @Test
+    public void findAt_onlyWithinRadius() {
+        MomentStore store = new MomentStore();
+        store.insert(10, 0, 0);
+        store.insert(50, 0, 0);
+
+        // 1 pixel per minute, x = 10 + t
+        TimeTransform transform = new TimeTransform();
+        transform.set(120, 10, new Viewport(0, 100));
+
+        assertEquals(0, MomentQueries.findAt(store, transform, 24, 5));
+        assertEquals(1, MomentQueries.findAt(store, transform, 57, 5));
+        assertEquals(-1, MomentQueries.findAt(store, transform, 40, 5));
+        assertEquals(-1, MomentQueries.findAt(new MomentStore(), transform, 20, 5));
+    }
+}
@@ -0,0 +1,170 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MomentStoreTest {
+    private static final int HEAP_MOMENTS = 200_000;
+
+    // Sizes with compressed references and 8 byte alignment, which is what ART and HotSpot use on
+    // heaps this size. Computed instead of measured, measuring the heap around System.gc() was flaky.
+    private static final int HEADER = 12, ARRAY_HEADER = 16, REFERENCE = 4;
+
+    private static long align(long bytes) {
+        return (bytes + 7) / 8 * 8;
+    }
+
+    private static void assertSorted(MomentStore store) {
+        for (int i = 1; i < store.size(); i++)
+            assertTrue("Not sorted at " + i, store.getTime(i - 1) <= store.getTime(i));
+    }
+
+    @Test
+    public void heapPerMoment_isLowerThanObjects() {
+        // What Timeline used before MomentStore, per moment: an object with its int t, byte[] tags
+        // and int color, a tags array with one tag, and its slot in an ArrayList.
+        long objectBytes = align(HEADER + 4 + REFERENCE + 4) + align(ARRAY_HEADER + 1) + REFERENCE;
+
+        // Grown one insert at a time, so the spare room counts too.
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < HEAP_MOMENTS; i++)
+            store.insert(i, i, MomentStore.withTag(0, 0, 1));
+        long capacity = store.capacity();
+        long storeBytes = 2 * align(ARRAY_HEADER + capacity * Integer.BYTES) + align(ARRAY_HEADER + capacity * Long.BYTES);
+
+        assertEquals(HEAP_MOMENTS, store.size());
+        assertTrue(capacity >= HEAP_MOMENTS);
+        assertTrue("Store should use less heap than moment objects, " + storeBytes + " vs " + objectBytes * HEAP_MOMENTS,
+                storeBytes < objectBytes * HEAP_MOMENTS);
+    }
+
+    @Test
+    public void tags_packAndUnpack() {
+        long tags = MomentStore.packTags(new byte[]{3, 0, 7});
+        assertEquals(3, MomentStore.tagCount(tags));
+        assertEquals(3, MomentStore.tagAt(tags, 0));
+        assertEquals(0, MomentStore.tagAt(tags, 1));
+        assertEquals(7, MomentStore.tagAt(tags, 2));
+
+        tags = MomentStore.withTag(tags, 1, 5);
+        assertEquals(3, MomentStore.tagCount(tags));
+        assertEquals(5, MomentStore.tagAt(tags, 1));
+    }
+
+    @Test
+    public void insertRemoveMove_keepSorted() {
+        MomentStore store = new MomentStore();
+        Random random = new Random(1);
+        for (int i = 0; i < 500; i++) {
+            int t = random.nextInt(24 * 60);
+            int index = store.insert(t, t, 0);
+            assertEquals(t, store.getTime(index));
+            assertEquals(t, store.getColor(index));
+        }
+        assertSorted(store);
+
+        for (int i = 0; i < 500; i++) {
+            int from = random.nextInt(store.size());
+            int color = store.getColor(from);
+            int t = random.nextInt(24 * 60);
+            int to = store.move(from, t);
+            assertEquals(t, store.getTime(to));
+            assertEquals(color, store.getColor(to));
+            assertSorted(store);
+        }
+
+        for (int i = 0; i < 250; i++)
+            store.remove(random.nextInt(store.size()));
+        assertEquals(250, store.size());
+        assertSorted(store);
+    }
+
+    @Test
+    public void addAll_sameAsInsertingOneByOne() {
+        Random random = new Random(2);
+        MomentStore bulk = new MomentStore(), single = new MomentStore();
+        for (int i = 0; i < 100; i++) {
+            int t = random.nextInt(200);
+            bulk.insert(t, i, 0);
+            single.insert(t, i, 0);
+        }
+
+        // Lots of equal times, so the order of ties is checked too.
+        MomentBatch batch = new MomentBatch();
+        for (int i = 0; i < 300; i++) {
+            int t = random.nextInt(200);
+            batch.add(t, 1000 + i, i);
+            single.insert(t, 1000 + i, i);
+        }
+        bulk.addAll(batch);
+
+        assertEquals(single.size(), bulk.size());
+        for (int i = 0; i < single.size(); i++) {
+            assertEquals(single.getTime(i), bulk.getTime(i));
+            assertEquals(single.getColor(i), bulk.getColor(i));
+            assertEquals(single.getTags(i), bulk.getTags(i));
+        }
+    }
+
+    @Test
+    public void addAll_appendsSortedBatch() {
+        MomentStore store = new MomentStore();
+        store.insert(5, 0, 0);
+        int version = store.getVersion();
+
+        store.addAll(new MomentBatch(new int[]{5, 6, 9}, new int[]{1, 2, 3}, new long[3]));
+        assertEquals(version + 1, store.getVersion());
+        assertEquals(4, store.size());
+        assertEquals(0, store.getColor(0));
+        assertEquals(1, store.getColor(1));
+        assertEquals(9, store.getTime(3));
+        assertSorted(store);
+    }
+
+    @Test
+    public void clampTags_keepsCountInRange() {
+        assertEquals(1, MomentStore.tagCount(MomentStore.clampTags(0)));
+
+        long tags = MomentStore.packTags(new byte[]{1, 2, 3, 4, 5, 6});
+        long clamped = MomentStore.clampTags(tags);
+        assertEquals(MomentStore.MAX_TAGS, MomentStore.tagCount(clamped));
+        assertEquals(4, MomentStore.tagAt(clamped, 3));
+        assertEquals(0, MomentStore.tagAt(clamped, 4));
+    }
+
+    @Test
+    public void bounds_findVisibleRange() {
+        MomentStore store = new MomentStore();
+        for (int t : new int[]{10, 20, 20, 30, 40})
+            store.insert(t, 0, 0);
+
+        assertEquals(1, store.lowerBound(20));
+        assertEquals(3, store.upperBound(20));
+        assertEquals(0, store.lowerBound(-5));
+        assertEquals(5, store.lowerBound(41));
+        assertEquals(0, store.upperBound(9));
+
+        // Moments within [15, 35]
+        assertEquals(1, store.lowerBound(15));
+        assertEquals(3, store.upperBound(35) - 1);
+    }
+
+    @Test
+    public void nearest_picksClosestMoment() {
+        MomentStore store = new MomentStore();
+        assertEquals(-1, store.nearest(5));
+
+        for (int t : new int[]{10, 20, 40})
+            store.insert(t, 0, 0);
+
+        assertEquals(0, store.nearest(-100));
+        assertEquals(0, store.nearest(14.9f));
+        assertEquals(1, store.nearest(15.1f));
+        assertEquals(1, store.nearest(29));
+        assertEquals(2, store.nearest(31));
+        assertEquals(2, store.nearest(1000));
+    }
+}
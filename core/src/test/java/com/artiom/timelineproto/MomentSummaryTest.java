@@ -0,0 +1,70 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class MomentSummaryTest {
+    @Test
+    public void shiftFor_bucketIsAtLeastAPixel() {
+        assertEquals(0, MomentSummary.shiftFor(0.5f));
+        assertEquals(0, MomentSummary.shiftFor(1));
+        assertEquals(1, MomentSummary.shiftFor(1.5f));
+        assertEquals(2, MomentSummary.shiftFor(3));
+        assertEquals(2, MomentSummary.shiftFor(4));
+        assertEquals(3, MomentSummary.shiftFor(4.1f));
+    }
+
+    @Test
+    public void level_countsAndDominant() {
+        MomentStore store = new MomentStore();
+        // Buckets of 8 minutes: [0,8) [8,16) [16,24) [24,32)
+        store.insert(2, 100, 0);
+        store.insert(3, 200, 0);
+        store.insert(5, 300, 0);
+        store.insert(26, 400, 0);
+
+        MomentSummary summary = new MomentSummary(store);
+        MomentSummary.Level level = summary.level(3);
+
+        assertEquals(4, level.size());
+        assertArrayEquals(new int[]{3, 0, 0, 1}, level.counts);
+        assertEquals(2, level.minTimes[0]);
+        assertEquals(5, level.maxTimes[0]);
+
+        // [0,2) inactive, [2,3) 100, [3,5) 200, [5,8) 300 -> 300 covers the most.
+        assertEquals(2, level.dominant[0]);
+        assertEquals(2, level.dominant[1]);
+        // [16,24) still belongs to the moment at 5
+        assertEquals(2, level.dominant[2]);
+        // [24,26) is 300, [26,32) is 400
+        assertEquals(3, level.dominant[3]);
+    }
+
+    @Test
+    public void level_mergesSameColoredNeighbours() {
+        MomentStore store = new MomentStore();
+        store.insert(0, 1, 0);
+        store.insert(3, 2, 0);
+        store.insert(5, 1, 0);
+        store.insert(6, 1, 0);
+
+        // [0,3) color 1, [3,5) color 2, [5,16) color 1 again -> moment 2 starts the winning run.
+        MomentSummary.Level level = new MomentSummary(store).level(4);
+        assertEquals(1, level.size());
+        assertEquals(2, level.dominant[0]);
+    }
+
+    @Test
+    public void level_rebuiltAfterChange() {
+        MomentStore store = new MomentStore();
+        store.insert(0, 1, 0);
+        store.insert(1, 1, 0);
+
+        MomentSummary summary = new MomentSummary(store);
+        assertEquals(2, summary.level(1).counts[0]);
+
+        store.insert(1, 1, 0);
+        assertEquals(3, summary.level(1).counts[0]);
+    }
+}
@@ -0,0 +1,149 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class MomentTotalsTest {
+    private static final int[] COLORS = {0xff0000, 0x00ff00, 0x0000ff};
+
+    // Straight from the definition, every span against the window.
+    private static double expected(MomentStore store, int color, int tag, float from, float to) {
+        double total = 0;
+        for (int i = 0; i < store.size(); i++) {
+            double start = store.getTime(i);
+            double end = i + 1 < store.size() ? store.getTime(i + 1) : Double.MAX_VALUE;
+            boolean has = tag == -1 ? store.getColor(i) == color : false;
+            for (int j = 0; tag != -1 && j < store.getTagCount(i); j++)
+                has |= store.getTag(i, j) == tag;
+            if (has)
+                total += Math.max(0, Math.min(end, to) - Math.max(start, from));
+        }
+        return total;
+    }
+
+    private static long randomTags(Random random) {
+        long tags = 0;
+        int count = 1 + random.nextInt(3);
+        for (int j = 0; j < count; j++)
+            tags = MomentStore.withTag(tags, j, random.nextInt(5));
+        return tags;
+    }
+
+    private static void assertMatches(MomentStore store, MomentTotals totals, Random random) {
+        for (int q = 0; q < 20; q++) {
+            float from = random.nextInt(6 * 1440) + random.nextFloat();
+            float to = from + random.nextInt(3 * 1440);
+            int color = COLORS[random.nextInt(COLORS.length)];
+            int tag = random.nextInt(5);
+            assertEquals(expected(store, color, -1, from, to), totals.colorMinutes(color, from, to), 1e-3);
+            assertEquals(expected(store, 0, tag, from, to), totals.tagMinutes(tag, from, to), 1e-3);
+        }
+    }
+
+    @Test
+    public void totals_matchSpansThroughEveryKindOfChange() {
+        Random random = new Random(5);
+        MomentStore store = new MomentStore();
+        MomentTotals totals = new MomentTotals(store);
+        for (int i = 0; i < 300; i++)
+            store.insert(random.nextInt(5 * 1440), COLORS[random.nextInt(COLORS.length)], randomTags(random));
+        assertMatches(store, totals, random);
+
+        for (int round = 0; round < 200; round++) {
+            int i = random.nextInt(store.size());
+            switch (random.nextInt(5)) {
+                case 0:
+                    store.insert(random.nextInt(5 * 1440), COLORS[random.nextInt(COLORS.length)], randomTags(random));
+                    break;
+                case 1:
+                    store.remove(i);
+                    break;
+                case 2:
+                    store.setColor(i, COLORS[random.nextInt(COLORS.length)]);
+                    break;
+                case 3:
+                    store.setTags(i, randomTags(random));
+                    break;
+                case 4:
+                    // Like a drag, moved silently a few times, then reported with move.
+                    int t = store.getTime(i);
+                    for (int step = 0; step < 5; step++)
+                        i = store.shift(i, Math.max(0, store.getTime(i) + random.nextInt(600) - 300));
+                    int end = store.getTime(i);
+                    store.setTime(i, t);
+                    store.move(i, end);
+                    break;
+            }
+            assertMatches(store, totals, random);
+        }
+    }
+
+    @Test
+    public void totals_onlyPatchMovedMoments() {
+        MomentStore store = new MomentStore();
+        MomentTotals totals = new MomentTotals(store);
+        MomentBatch batch = new MomentBatch();
+        for (int t = 0; t < 100 * 1440; t += 60)
+            batch.add(t, COLORS[(t / 60) % 3], MomentStore.withTag(0, 0, 1));
+        store.addAll(batch);
+        assertEquals(100 * 1440 / 3, totals.colorMinutes(COLORS[0], 0, 100 * 1440), 1e-3);
+
+        long redone = totals.momentsRedone();
+        int i = store.lowerBound(50 * 1440 + 120);
+        store.shift(i, 50 * 1440 + 150);
+        assertEquals(100 * 1440 / 3 - 30, totals.colorMinutes(COLORS[2], 0, 100 * 1440), 1e-3);
+        // The moved one and the one before it, not the 2400 there are.
+        assertTrue(totals.momentsRedone() - redone <= 3);
+    }
+
+    @Test
+    public void insertAndRemove_onlyLayTheirBuckets() {
+        MomentStore store = new MomentStore();
+        MomentTotals totals = new MomentTotals(store);
+        MomentBatch batch = new MomentBatch();
+        for (int t = 0; t < 100 * 1440; t += 60)
+            batch.add(t, COLORS[(t / 60) % 3], MomentStore.withTag(0, 0, 1));
+        store.addAll(batch);
+        assertEquals(100 * 1440 / 3, totals.colorMinutes(COLORS[0], 0, 100 * 1440), 1e-3);
+
+        long redone = totals.momentsRedone();
+        store.insert(50 * 1440 + 30, COLORS[1], 0);
+        assertEquals(100 * 1440 / 3 - 30, totals.colorMinutes(COLORS[0], 0, 100 * 1440), 1e-3);
+        store.remove(store.lowerBound(50 * 1440 + 30));
+        assertEquals(100 * 1440 / 3, totals.colorMinutes(COLORS[0], 0, 100 * 1440), 1e-3);
+        // The moments around each one, not the 2400 there are.
+        assertTrue(totals.momentsRedone() - redone <= 10);
+    }
+
+    @Test
+    public void clear_resetsEverything() {
+        MomentStore store = new MomentStore();
+        MomentTotals totals = new MomentTotals(store);
+        store.insert(100, COLORS[0], MomentStore.withTag(0, 0, 2));
+        assertEquals(50, totals.tagMinutes(2, 150, 200), 1e-3);
+
+        store.clear();
+        assertEquals(0, totals.tagMinutes(2, 150, 200), 1e-3);
+        assertEquals(0, totals.colorMinutes(COLORS[0], 0, 1000), 1e-3);
+    }
+
+    @Test
+    public void keys_withoutMomentsAreDropped() {
+        MomentStore store = new MomentStore();
+        MomentTotals totals = new MomentTotals(store);
+        // Years in, the buckets only cover the times there are.
+        int t = MomentStore.MAX_TIME - 1000;
+        store.insert(t, COLORS[0], MomentStore.withTag(0, 0, 1));
+        store.insert(t + 100, COLORS[1], MomentStore.withTag(0, 0, 2));
+        assertEquals(100, totals.colorMinutes(COLORS[0], 0, MomentStore.MAX_TIME), 1e-3);
+        assertEquals(4, totals.keyCount());
+
+        store.remove(0);
+        assertEquals(0, totals.colorMinutes(COLORS[0], 0, MomentStore.MAX_TIME), 1e-3);
+        assertEquals(900, totals.tagMinutes(2, 0, MomentStore.MAX_TIME), 1e-3);
+        assertEquals(2, totals.keyCount());
+    }
+}
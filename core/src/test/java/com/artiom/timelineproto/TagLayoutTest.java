@@ -0,0 +1,73 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TagLayoutTest {
+    private static final float ICON = 10;
+
+    private static long tags(int count) {
+        long packed = 0;
+        for (int i = 0; i < count; i++)
+            packed = MomentStore.withTag(packed, i, i);
+        return packed;
+    }
+
+    @Test
+    public void level_placedRowsNeverOverlap() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 1000; i++)
+            store.insert(i * 7, 0, tags(1 + i % MomentStore.MAX_TAGS));
+
+        TagLayout layout = new TagLayout(store, ICON);
+        for (float pxPerMinute : new float[]{0.3f, 1, 1.1f, 4, 9.5f}) {
+            TagLayout.Level level = layout.level(pxPerMinute);
+            assertTrue(level.count() > 0);
+            for (int k = 1; k < level.count(); k++) {
+                int a = level.moment(k - 1), b = level.moment(k);
+                float gap = (store.getTime(b) - store.getTime(a)) * pxPerMinute;
+                float needed = (store.getTagCount(a) + store.getTagCount(b)) * ICON / 2;
+                assertTrue(gap >= needed - 0.001f);
+            }
+        }
+
+        // Zoomed in far enough everything fits.
+        assertEquals(1000, layout.level(6).count());
+        assertTrue(layout.level(0.3f).count() < layout.level(1).count());
+    }
+
+    @Test
+    public void level_reusedWithinASizeClassUntilTheStoreChanges() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 100; i++)
+            store.insert(i * 3, 0, tags(1));
+
+        TagLayout layout = new TagLayout(store, ICON);
+        TagLayout.Level level = layout.level(2);
+        assertSame(level, layout.level(2.1f));
+        assertEquals(1, layout.buildCount());
+
+        // Zooming back and forth between cached levels doesn't place anything again.
+        layout.level(8);
+        layout.level(2);
+        layout.level(8);
+        assertEquals(2, layout.buildCount());
+
+        store.insert(1000, 0, tags(1));
+        assertEquals(level.count() + 1, layout.level(2).count());
+        assertEquals(3, layout.buildCount());
+    }
+
+    @Test
+    public void firstFrom_searchesPlacedMoments() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 10; i++)
+            store.insert(i * 100, 0, tags(1));
+
+        TagLayout.Level level = new TagLayout(store, ICON).level(1);
+        assertEquals(10, level.count());
+        assertEquals(3, level.firstFrom(store, 250));
+        assertEquals(10, level.firstFrom(store, 901));
+    }
+}
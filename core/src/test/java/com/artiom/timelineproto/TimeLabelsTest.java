@@ -0,0 +1,60 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+public class TimeLabelsTest {
+    @Test
+    public void duration_matchesStringFormat() {
+        TimeLabels labels = new TimeLabels();
+        float[] minutes = {0, 5, 12.34f, 12.35f, 60, 61, 90, 48 * 60, 48 * 60 + 1, 10000, 1e6f};
+        for (float m : minutes) {
+            String expected;
+            if (m <= 60)
+                expected = String.format(Locale.ENGLISH, "%s: %.1f %s", "Scale", m, "minutes");
+            else if (m <= 48 * 60)
+                expected = String.format(Locale.ENGLISH, "%s: %.1f %s", "Scale", m / 60, "hours");
+            else
+                expected = String.format(Locale.ENGLISH, "%s: %.1f %s", "Scale", m / (24 * 60), "days");
+            assertEquals(expected, labels.duration("Scale", m).toString());
+        }
+    }
+
+    @Test
+    public void duration_unitsByLength() {
+        TimeLabels labels = new TimeLabels();
+        assertEquals("Scale: 60.0 minutes", labels.duration("Scale", 60).toString());
+        assertEquals("Scale: 1.5 hours", labels.duration("Scale", 90).toString());
+        assertEquals("Scale: 48.0 hours", labels.duration("Scale", 48 * 60).toString());
+        // Past two days it's days, like it always was.
+        assertEquals("Scale: 2.5 days", labels.duration("Scale", 60 * 60).toString());
+    }
+
+    @Test
+    public void tick_clockWithinADayAndDayAtItsStart() {
+        TimeLabels labels = new TimeLabels();
+        assertEquals("Day 1", labels.tick(0).toString());
+        assertEquals("09:05", labels.tick(9 * 60 + 5).toString());
+        assertEquals("23:59", labels.tick(24 * 60 - 1).toString());
+        assertEquals("Day 3", labels.tick(2 * 24 * 60).toString());
+        assertEquals("00:30", labels.tick(2 * 24 * 60 + 30).toString());
+    }
+
+    @Test
+    public void tickMinutes_keepsTicksApartAtEveryZoom() {
+        float minPx = 50;
+        int last = 0;
+        for (float pxPerMinute = 100; pxPerMinute > 1e-5f; pxPerMinute /= 1.5f) {
+            int step = TimeLabels.tickMinutes(pxPerMinute, minPx);
+            assertTrue(step * pxPerMinute >= minPx);
+            // Zooming out never makes them closer together in time.
+            assertTrue(step >= last);
+            last = step;
+        }
+        assertEquals(1, TimeLabels.tickMinutes(100, minPx));
+        assertEquals(60, TimeLabels.tickMinutes(1, minPx));
+    }
+}
@@ -0,0 +1,161 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class TimelineLayoutTest {
+    private static final int WIDTH = 1000, PADDING = 100, INACTIVE = 7;
+
+    private static TimeTransform transform(float timeStart, float timeScale) {
+        TimeTransform transform = new TimeTransform();
+        transform.set(WIDTH, PADDING, new Viewport(timeStart, timeScale));
+        return transform;
+    }
+
+    @Test
+    public void build_linesAndCirclesOfVisibleMoments() {
+        MomentStore store = new MomentStore();
+        store.insert(10, 1, 0);
+        store.insert(50, 2, 0);
+        store.insert(200, 3, 0);
+
+        // A minute is 8 pixels, so the moment at 200 is outside [0, WIDTH).
+        TimelineLayout.Frame frame = new TimelineLayout.Frame();
+        new LayoutBuilder(5).build(store, new MomentSummary(store), transform(0, 100), 20, INACTIVE, 0, WIDTH, frame);
+
+        assertEquals(0, frame.firstVisible);
+        assertEquals(1, frame.lastVisible);
+        assertEquals(-1, frame.levelShift);
+        assertEquals(0, frame.timeStart, 0);
+        assertEquals(8, frame.pxPerMinute, 0);
+
+        // Inactive up to the first moment, then one line per moment, the last one to the end.
+        DrawList list = frame.drawList;
+        assertEquals(3, list.groupCount());
+        assertEquals(INACTIVE, list.groupColor(0));
+        assertEquals(180, list.lines(0)[2], 0);
+        assertEquals(2, list.circleFloats(1));
+        assertEquals(500, list.lines(2)[0], 0);
+        assertEquals(WIDTH, list.lines(2)[2], 0);
+        assertEquals(20, list.lines(2)[3], 0);
+        assertEquals(2, frame.momentsDrawn);
+    }
+
+    @Test
+    public void build_summarizesWhenMomentsSharePixels() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 10_000; i++)
+            store.insert(i * 3, i % 2, 0);
+
+        TimelineLayout.Frame frame = new TimelineLayout.Frame();
+        new LayoutBuilder(5).build(store, new MomentSummary(store), transform(0, 30_000), 20, INACTIVE, 0, WIDTH, frame);
+
+        assertTrue(frame.levelShift > 0);
+        assertTrue(frame.momentsDrawn <= WIDTH);
+    }
+
+    @Test
+    public void build_placesTagRowsAroundTheArea() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 1000; i++)
+            store.insert(i * 5, 0, MomentStore.withTag(0, 0, i % 3));
+
+        // 8 pixels a minute, so the rows of 10 pixel icons all fit.
+        TimelineLayout.Frame frame = new TimelineLayout.Frame();
+        TagLayout tags = new TagLayout(store, 10);
+        new LayoutBuilder(5, 10).build(store, new MomentSummary(store), tags, transform(1000, 100), 20, INACTIVE,
+                0, WIDTH, frame);
+        assertEquals(store.lowerBound(1000 - 15), frame.tagMoments[0]);
+        for (int k = 0; k < frame.tagRows; k++) {
+            assertEquals(store.getTime(frame.tagMoments[k]), frame.tagTimes[k]);
+            assertEquals(store.getTags(frame.tagMoments[k]), frame.tagTags[k]);
+        }
+        assertTrue(frame.tagTimes[frame.tagRows - 1] <= 1125 + 3);
+
+        // Zoomed out, the same rows would run into each other.
+        new LayoutBuilder(5, 10).build(store, new MomentSummary(store), tags, transform(0, 5000), 20, INACTIVE,
+                0, WIDTH, frame);
+        assertTrue(frame.tagRows < 1000);
+        assertEquals(2, tags.buildCount());
+    }
+
+    // The worker is held on its first frame, every request after that but the last is dropped.
+    @Test
+    public void request_dropsWhatTheWorkerDidNotGetTo() throws InterruptedException {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 100; i++)
+            store.insert(i * 10, i, 0);
+
+        CountDownLatch release = new CountDownLatch(1);
+        Semaphore framesReady = new Semaphore(0);
+        TimelineLayout layout = new TimelineLayout(new LayoutBuilder(5), () -> {
+            framesReady.release();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        });
+
+        assertFalse(layout.request(store, transform(0, 100), 20, INACTIVE, 0, WIDTH));
+        assertTrue(framesReady.tryAcquire(5, TimeUnit.SECONDS));
+
+        int dropped = 0;
+        for (int i = 1; i <= 100; i++) {
+            store.setColor(i % store.size(), i);
+            if (layout.request(store, transform(i, 100), 20, INACTIVE, 0, WIDTH))
+                dropped++;
+        }
+        assertEquals(99, dropped);
+
+        release.countDown();
+        assertTrue(framesReady.tryAcquire(5, TimeUnit.SECONDS));
+        assertFalse(framesReady.tryAcquire(200, TimeUnit.MILLISECONDS));
+
+        TimelineLayout.Frame frame = layout.frame();
+        assertEquals(100, frame.timeStart, 0);
+        assertEquals(101, frame.serial);
+        layout.stop();
+    }
+
+    @Test
+    public void frame_nullUntilOneIsReady() {
+        TimelineLayout layout = new TimelineLayout(new LayoutBuilder(5), () -> { });
+        assertNull(layout.frame());
+        layout.stop();
+    }
+
+    // Two layouts on one executor that only runs what it was given when asked to, like a busy thread.
+    @Test
+    public void executor_buildsEveryLayoutsNewestRequest() {
+        ArrayList<Runnable> queued = new ArrayList<>();
+        LayoutBuilder builder = new LayoutBuilder(5);
+        TimelineLayout a = new TimelineLayout(builder, () -> { }, queued::add);
+        TimelineLayout b = new TimelineLayout(builder, () -> { }, queued::add);
+        MomentStore store = new MomentStore();
+        store.insert(10, 1, 0);
+
+        a.request(store, transform(0, 100), 20, INACTIVE, 0, WIDTH);
+        a.request(store, transform(5, 100), 20, INACTIVE, 0, WIDTH);
+        b.request(store, transform(7, 100), 20, INACTIVE, 0, WIDTH);
+        // One task per layout, however many requests came in before it ran.
+        assertEquals(2, queued.size());
+        assertNull(a.frame());
+
+        queued.get(0).run();
+        queued.get(1).run();
+        assertEquals(5, a.frame().timeStart, 0);
+        assertEquals(a.requestSerial(), a.frame().serial);
+        assertEquals(7, b.frame().timeStart, 0);
+
+        // Done draining, so the next request queues another task.
+        a.request(store, transform(9, 100), 20, INACTIVE, 0, WIDTH);
+        assertEquals(3, queued.size());
+    }
+}
@@ -0,0 +1,79 @@
+package com.artiom.timelineproto;
+
+import org.junit.Test;
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+import static org.junit.Assert.*;
+
+public class TimelineMetricsTest {
+    @Test
+    public void disabled_recordsNothing() {
+        TimelineMetrics metrics = new TimelineMetrics();
+        assertEquals(0, metrics.frameStart());
+        metrics.frameEnd(0);
+        metrics.touchInvalidated(0, 10);
+        metrics.countMoments(100, 10);
+        metrics.countFrames(20, 15, 5);
+        metrics.frameLaidOut(2000);
+
+        assertEquals(0, metrics.drawTime.count());
+        assertEquals(0, metrics.touchToInvalidate.count());
+        assertEquals(0, metrics.layoutTime.count());
+        assertEquals(0, metrics.momentsScanned());
+        assertEquals(0, metrics.framesRequested());
+    }
+
+    @Test
+    public void enabled_countsAndResets() {
+        TimelineMetrics metrics = new TimelineMetrics();
+        metrics.setEnabled(true);
+        metrics.frameEnd(metrics.frameStart());
+        metrics.touchInvalidated(100, 104);
+        metrics.countMoments(100, 10);
+        metrics.countMoments(50, 5);
+        metrics.countFrames(20, 15, 5);
+        metrics.frameLaidOut(2000);
+
+        assertEquals(1, metrics.drawTime.count());
+        assertEquals(2, metrics.layoutTime.max());
+        assertEquals(4000, metrics.touchToInvalidate.max());
+        assertEquals(150, metrics.momentsScanned());
+        assertEquals(15, metrics.momentsDrawn());
+        assertEquals(20, metrics.framesRequested());
+        assertEquals(15, metrics.framesDropped());
+        assertEquals(5, metrics.framesReplayed());
+
+        metrics.reset();
+        assertEquals(0, metrics.drawTime.count());
+        assertEquals(0, metrics.momentsScanned());
+    }
+
+    @Test
+    public void histogram_percentilesAreBucketUpperBounds() {
+        TimelineMetrics.Histogram histogram = new TimelineMetrics.Histogram();
+        for (int i = 0; i < 90; i++)
+            histogram.record(100);
+        for (int i = 0; i < 10; i++)
+            histogram.record(5000);
+
+        // 100 lands in [64, 128), 5000 in [4096, 8192) but nothing is above the max.
+        assertEquals(127, histogram.percentile(0.5));
+        assertEquals(127, histogram.percentile(0.9));
+        assertEquals(5000, histogram.percentile(0.99));
+        assertEquals(590, histogram.mean(), 0.001);
+    }
+
+    @Test
+    public void dump_includesStoreCounts() {
+        MomentStore store = new MomentStore();
+        for (int i = 0; i < 5; i++)
+            store.insert(i * 10, 0, 0);
+        store.shift(0, 45);
+
+        StringWriter text = new StringWriter();
+        new TimelineMetrics().dump(new PrintWriter(text), "", store);
+        assertTrue(text.toString().contains("shifts=1 passed=4"));
+    }
+}
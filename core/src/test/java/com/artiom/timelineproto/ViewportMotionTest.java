@@ -0,0 +1,99 @@
+package com.artiom.timelineproto;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class ViewportMotionTest {
+    private static final int WIDTH = 1000, PADDING = 100, SPAN = 10_000;
+
+    private ViewportMotion motion;
+    private Viewport viewport;
+    private TimeTransform transform;
+
+    @Before
+    public void setUp() {
+        motion = new ViewportMotion(5);
+        viewport = new Viewport(1000, 800);
+        transform = new TimeTransform();
+        transform.set(WIDTH, PADDING, viewport);
+    }
+
+    @Test
+    public void pans_addUpIntoOneViewport() {
+        // A minute is a pixel, so three pans to the left move 30 minutes later.
+        motion.pan(-10);
+        motion.pan(-10);
+        motion.pan(-10);
+        assertTrue(motion.isPending());
+
+        Viewport moved = motion.apply(viewport, transform, SPAN);
+        assertEquals(1030, moved.timeStart, 0.001);
+        assertEquals(800, moved.timeScale, 0.001);
+        assertFalse(motion.isPending());
+    }
+
+    @Test
+    public void zoom_keepsTheTimeUnderTheFocus() {
+        float focusX = 300;
+        float focusT = transform.toTime(focusX);
+        motion.zoom(2, focusX);
+        motion.zoom(2, focusX);
+
+        Viewport zoomed = motion.apply(viewport, transform, SPAN);
+        assertEquals(200, zoomed.timeScale, 0.001);
+
+        TimeTransform after = new TimeTransform();
+        after.set(WIDTH, PADDING, zoomed);
+        assertEquals(focusT, after.toTime(focusX), 0.001);
+    }
+
+    @Test
+    public void apply_staysWithinTheSpan() {
+        motion.pan(5000);
+        Viewport moved = motion.apply(viewport, transform, SPAN);
+        assertEquals(0, moved.timeStart, 0);
+        assertTrue(motion.hitEdge());
+
+        motion.zoom(0.001f, 500);
+        Viewport zoomed = motion.apply(viewport, transform, SPAN);
+        assertEquals(SPAN, zoomed.timeScale, 0);
+        assertEquals(0, zoomed.timeStart, 0);
+
+        motion.zoom(1000, 500);
+        assertEquals(5, motion.apply(viewport, transform, SPAN).timeScale, 0);
+    }
+
+    @Test
+    public void set_dropsWhatCameBefore() {
+        motion.pan(-500);
+        motion.set(new Viewport(2000, 800));
+        motion.pan(-10);
+
+        Viewport moved = motion.apply(viewport, transform, SPAN);
+        assertEquals(2010, moved.timeStart, 0.001);
+        assertFalse(motion.hitEdge());
+    }
+
+    @Test
+    public void cancel_dropsEverythingGathered() {
+        motion.pan(-50);
+        motion.zoom(2, 500);
+        motion.cancel();
+        assertFalse(motion.isPending());
+
+        motion.pan(-10);
+        Viewport next = motion.apply(viewport, transform, SPAN);
+        assertEquals(viewport.timeScale, next.timeScale, 1e-3);
+        assertEquals(viewport.timeStart + 10, next.timeStart, 1e-3);
+    }
+
+    @Test
+    public void zoomOut_stopsAtTheMaxScale() {
+        motion.zoom(0.1f, 500);
+
+        Viewport zoomed = motion.apply(viewport, transform, SPAN, 3000);
+        assertEquals(3000, zoomed.timeScale, 0.001);
+    }
+}